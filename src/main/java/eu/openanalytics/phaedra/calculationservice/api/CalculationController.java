@@ -53,7 +53,8 @@ public class CalculationController {
         var execution = protocolExecutorService.execute(
                 calculationRequestDTO.getProtocolId(),
                 calculationRequestDTO.getPlateId(),
-                calculationRequestDTO.getMeasId());
+                calculationRequestDTO.getMeasId(),
+                calculationRequestDTO.getBaseResultSetId());
         return new ResponseEntity<>(execution.get(), HttpStatus.CREATED);
     }
 
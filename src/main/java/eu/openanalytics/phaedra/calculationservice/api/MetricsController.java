@@ -0,0 +1,51 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.api;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import eu.openanalytics.phaedra.calculationservice.util.MetricsProvider;
+
+@RestController
+public class MetricsController {
+
+    private final List<MetricsProvider> metricsProviders;
+
+    public MetricsController(List<MetricsProvider> metricsProviders) {
+        this.metricsProviders = metricsProviders;
+    }
+
+    @GetMapping("/metrics")
+    public ResponseEntity<Map<String, Map<String, Number>>> getMetrics() {
+        Map<String, Map<String, Number>> metrics = new TreeMap<>();
+        for (MetricsProvider provider: metricsProviders) {
+            metrics.put(provider.getMetricsName(), provider.getMetrics());
+        }
+        return new ResponseEntity<>(metrics, HttpStatus.OK);
+    }
+}
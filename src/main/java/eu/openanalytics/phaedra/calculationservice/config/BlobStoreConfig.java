@@ -0,0 +1,48 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import eu.openanalytics.phaedra.calculationservice.service.script.BlobStore;
+import eu.openanalytics.phaedra.calculationservice.service.script.FileSystemBlobStore;
+
+/**
+ * The blob store for script inputs that are too large to send inline (claim check).
+ * 
+ * Claim checks are disabled unless phaedra2.calculation.claim-check.enabled is set, since the
+ * script engine must have access to the same blob store.
+ */
+@Configuration
+public class BlobStoreConfig {
+
+	@Bean
+	@ConditionalOnProperty(name = "phaedra2.calculation.claim-check.enabled", havingValue = "true")
+	public BlobStore blobStore(@Value("${phaedra2.calculation.claim-check.directory:/tmp/phaedra2/blobs}") String directory) throws IOException {
+		return new FileSystemBlobStore(Path.of(directory));
+	}
+}
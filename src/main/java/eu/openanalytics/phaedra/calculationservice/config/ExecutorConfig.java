@@ -0,0 +1,74 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import eu.openanalytics.phaedra.calculationservice.enumeration.ExecutionMode;
+import eu.openanalytics.phaedra.calculationservice.enumeration.RejectionPolicy;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationExecutor;
+
+/**
+ * Executors used by the calculation services.
+ *
+ * The protocol executor runs plate calculations and the (blocking) collection of their input data.
+ * The callback executor dispatches script output callbacks, so that these are never starved
+ * by blocking input collection. The curve fit executor runs curve fitting requests.
+ * 
+ * All executors share the same {@link ExecutionMode}: with VIRTUAL, the blocking service-client calls
+ * no longer need one platform thread each.
+ */
+@Configuration
+public class ExecutorConfig {
+
+	public static final String PROTOCOL_EXECUTOR = "protocolExecutor";
+	public static final String CALLBACK_EXECUTOR = "callbackExecutor";
+	public static final String CURVE_FIT_EXECUTOR = "curveFitExecutor";
+
+	@Value("${phaedra2.calculation.executor.mode:PLATFORM}")
+	private ExecutionMode executionMode;
+
+	@Bean(name = PROTOCOL_EXECUTOR)
+	public CalculationExecutor protocolExecutor(
+			@Value("${phaedra2.calculation.executor.protocol.pool-size:16}") int poolSize,
+			@Value("${phaedra2.calculation.executor.protocol.queue-size:1000}") int queueSize,
+			@Value("${phaedra2.calculation.executor.protocol.rejection-policy:CALLER_RUNS}") RejectionPolicy rejectionPolicy) {
+		return new CalculationExecutor("protocol", executionMode, poolSize, queueSize, rejectionPolicy);
+	}
+
+	@Bean(name = CALLBACK_EXECUTOR)
+	public CalculationExecutor callbackExecutor(
+			@Value("${phaedra2.calculation.executor.callback.pool-size:8}") int poolSize,
+			@Value("${phaedra2.calculation.executor.callback.queue-size:10000}") int queueSize,
+			@Value("${phaedra2.calculation.executor.callback.rejection-policy:CALLER_RUNS}") RejectionPolicy rejectionPolicy) {
+		return new CalculationExecutor("callback", executionMode, poolSize, queueSize, rejectionPolicy);
+	}
+
+	@Bean(name = CURVE_FIT_EXECUTOR)
+	public CalculationExecutor curveFitExecutor(
+			@Value("${phaedra2.calculation.executor.curvefit.pool-size:8}") int poolSize,
+			@Value("${phaedra2.calculation.executor.curvefit.queue-size:1000}") int queueSize,
+			@Value("${phaedra2.calculation.executor.curvefit.rejection-policy:CALLER_RUNS}") RejectionPolicy rejectionPolicy) {
+		return new CalculationExecutor("curvefit", executionMode, poolSize, queueSize, rejectionPolicy);
+	}
+}
@@ -43,18 +43,24 @@ public class KafkaConfig {
     public static final String EVENT_REQUEST_PLATE_CALCULATION = "requestPlateCalculation";
     public static final String EVENT_REQUEST_CURVE_FIT = "requestCurveFit";
     public static final String EVENT_UPDATE_PLATE_STATUS = "requestPlateCalculationStatusUpdate";
+    public static final String EVENT_PLATE_UPDATED = "plateUpdated";
     public static final String EVENT_SAVE_CURVE = "saveCurve";
+    public static final String EVENT_SAVE_CURVES = "saveCurves";
     
     public static final String EVENT_NOTIFY_CALCULATION_EVENT = "notifyCalculationEvent";
     
     public static final String EVENT_SAVE_RESULT_DATA = "saveResultData";
     public static final String EVENT_SAVE_RESULT_STATS = "saveResultStats";
+    public static final String EVENT_SAVE_RESULT_STATS_BATCH = "saveResultStatsBatch";
     public static final String EVENT_RESULT_SET_UPDATED = "resultSetUpdated";
     public static final String EVENT_RESULT_DATA_UPDATED = "resultDataUpdated";
     public static final String EVENT_RESULT_FEATURE_STAT_UPDATED = "resultFeatureStatUpdated";
+    public static final String EVENT_RESULT_FEATURE_STATS_UPDATED = "resultFeatureStatsUpdated";
     
     public static final String EVENT_REQUEST_SCRIPT_EXECUTION = "requestScriptExecution";
     public static final String EVENT_SCRIPT_EXECUTION_UPDATE = "scriptExecutionUpdate";
+    public static final String EVENT_REQUEST_SCRIPT_EXECUTION_BATCH = "requestScriptExecutionBatch";
+    public static final String EVENT_SCRIPT_EXECUTION_BATCH_UPDATE = "scriptExecutionBatchUpdate";
     
     @Bean
     public RecordFilterStrategy<String, Object> requestPlateCalculationFilter() {
@@ -66,11 +72,21 @@ public class KafkaConfig {
         return rec -> !(rec.key().equalsIgnoreCase(EVENT_REQUEST_CURVE_FIT));
     }
     
+    @Bean
+    public RecordFilterStrategy<String, Object> plateUpdatedFilter() {
+        return rec -> !(rec.key().equalsIgnoreCase(EVENT_PLATE_UPDATED));
+    }
+    
     @Bean
     public RecordFilterStrategy<String, Object> scriptExecutionUpdateFilter() {
         return rec -> !(rec.key().equalsIgnoreCase(EVENT_SCRIPT_EXECUTION_UPDATE));
     }
     
+    @Bean
+    public RecordFilterStrategy<String, Object> scriptExecutionBatchUpdateFilter() {
+        return rec -> !(rec.key().equalsIgnoreCase(EVENT_SCRIPT_EXECUTION_BATCH_UPDATE));
+    }
+    
     @Bean
     public RecordFilterStrategy<String, Object> resultSetUpdatedFilter() {
         return rec -> !(rec.key().equalsIgnoreCase(EVENT_RESULT_SET_UPDATED));
@@ -86,6 +102,11 @@ public class KafkaConfig {
         return rec -> !(rec.key().equalsIgnoreCase(EVENT_RESULT_FEATURE_STAT_UPDATED));
     }
     
+    @Bean
+    public RecordFilterStrategy<String, Object> resultFeatureStatsUpdatedFilter() {
+        return rec -> !(rec.key().equalsIgnoreCase(EVENT_RESULT_FEATURE_STATS_UPDATED));
+    }
+    
     @Bean
     public BytesJsonMessageConverter messageConverter() {
     	return new BytesJsonMessageConverter();
@@ -32,5 +32,7 @@ public class CalculationRequestDTO {
     private Long protocolId;
     private Long plateId;
     private Long measId;
+    // Optional: an earlier result set of the same protocol, plate and measurement, to recalculate incrementally
+    private Long baseResultSetId;
 
 }
\ No newline at end of file
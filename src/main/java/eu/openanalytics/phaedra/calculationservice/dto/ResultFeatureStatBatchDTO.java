@@ -0,0 +1,47 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.dto;
+
+import java.util.List;
+
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultFeatureStatDTO;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An envelope that carries all feature stat values of one feature in a single message.
+ * 
+ * It is used both to save the values (saveResultStatsBatch), and to announce
+ * that the values have been saved (resultFeatureStatsUpdated).
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class ResultFeatureStatBatchDTO {
+
+	private Long resultSetId;
+	private Long featureId;
+	private List<ResultFeatureStatDTO> resultFeatureStats;
+
+}
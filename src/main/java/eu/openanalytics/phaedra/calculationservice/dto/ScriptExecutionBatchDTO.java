@@ -0,0 +1,48 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.dto;
+
+import java.util.List;
+
+import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionInputDTO;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An envelope that carries multiple script execution inputs in a single message.
+ * 
+ * The sharedInput is a JSON object whose fields are added to the input document of every
+ * input in the batch (overriding fields of the input document with the same name).
+ * The outputs are returned per input, see {@link ScriptExecutionBatchOutputDTO}.
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class ScriptExecutionBatchDTO {
+
+	private String id;
+	private String sharedInput;
+	private List<ScriptExecutionInputDTO> inputs;
+
+}
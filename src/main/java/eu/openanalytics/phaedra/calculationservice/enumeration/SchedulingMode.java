@@ -0,0 +1,33 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.enumeration;
+
+public enum SchedulingMode {
+    /**
+     * Features are executed sequence by sequence: a sequence starts when all features
+     * (and feature stats) of the previous sequence are complete.
+     */
+    SEQUENCE,
+    /**
+     * Each feature is executed as soon as the data of the features it references is available.
+     */
+    DEPENDENCY
+}
@@ -21,10 +21,15 @@
 package eu.openanalytics.phaedra.calculationservice.model;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import eu.openanalytics.phaedra.calculationservice.service.protocol.ProtocolDataCollector.ProtocolData;
 import eu.openanalytics.phaedra.calculationservice.util.CalculationProgress;
 import eu.openanalytics.phaedra.calculationservice.util.ErrorCollector;
+import eu.openanalytics.phaedra.calculationservice.util.FeatureDependencyGraph;
+import eu.openanalytics.phaedra.calculationservice.util.ScriptMessageStatistics;
 import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
 import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
 import lombok.AccessLevel;
@@ -46,8 +51,25 @@ public class CalculationContext {
     ErrorCollector errorCollector;
     CalculationProgress calculationProgress;
     
+    MeasurementDataCache measurementDataCache;
+    
+    // The values of the features calculated so far, by feature ID
+    Map<Long, float[]> featureValues;
+    
+    FeatureDependencyGraph featureDependencyGraph;
+    
+    // The features whose results are copied from an earlier result set instead of being calculated
+    Set<Long> reusedFeatureIds;
+    
+    ScriptMessageStatistics scriptMessageStatistics;
+    
     public static CalculationContext newInstance(ProtocolData protocolData, PlateDTO plate, List<WellDTO> wells, Long resultSetId, Long measId) {
-    	CalculationContext ctx = new CalculationContext(protocolData, plate, wells, resultSetId, measId, null, null);
+    	return newInstance(protocolData, plate, wells, resultSetId, measId, new MeasurementDataCache(false));
+    }
+    
+    public static CalculationContext newInstance(ProtocolData protocolData, PlateDTO plate, List<WellDTO> wells, Long resultSetId, Long measId, MeasurementDataCache measurementDataCache) {
+    	CalculationContext ctx = new CalculationContext(protocolData, plate, wells, resultSetId, measId, null, null, measurementDataCache, new ConcurrentHashMap<>(),
+    			FeatureDependencyGraph.of(protocolData.protocol.getFeatures()), ConcurrentHashMap.newKeySet(), new ScriptMessageStatistics());
     	ctx.calculationProgress = new CalculationProgress(ctx);
         ctx.errorCollector = new ErrorCollector(ctx);
         return ctx;
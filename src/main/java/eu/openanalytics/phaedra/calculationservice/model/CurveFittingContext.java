@@ -24,7 +24,6 @@ import java.util.List;
 
 import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
 import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
-import eu.openanalytics.phaedra.plateservice.dto.WellSubstanceDTO;
 import eu.openanalytics.phaedra.protocolservice.dto.DRCModelDTO;
 import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
 import lombok.AccessLevel;
@@ -44,10 +43,10 @@ public class CurveFittingContext {
     List<WellDTO> wells;
 
     @NonNull
-    List<WellSubstanceDTO> wellSubstances;
+    List<String> uniqueSubstances;
 
     @NonNull
-    List<String> uniqueSubstances;
+    SubstanceWellIndex substanceWellIndex;
 
 //    @NonNull
 //    List<FeatureDTO> curveFeatures;
@@ -74,11 +73,11 @@ public class CurveFittingContext {
 
     public static CurveFittingContext newInstance(PlateDTO plate,
                                                   List<WellDTO> wells,
-                                                  List<WellSubstanceDTO> wellSubstances,
                                                   List<String> uniqueSubstances,
+                                                  SubstanceWellIndex substanceWellIndex,
                                                   FeatureDTO feature,
                                                   DRCModelDTO drcModel) {
-        CurveFittingContext curveFittingContext = new CurveFittingContext(plate, wells, wellSubstances, uniqueSubstances, feature, drcModel);
+        CurveFittingContext curveFittingContext = new CurveFittingContext(plate, wells, uniqueSubstances, substanceWellIndex, feature, drcModel);
         return curveFittingContext;
     }
 }
@@ -0,0 +1,160 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.model;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of measurement columns, scoped to a single calculation.
+ * 
+ * Columns are keyed by (measId, columnName) and are fetched only once per calculation,
+ * regardless of how many features (in how many sequences) reference them.
+ * Entries are futures, so a column that is still being fetched is shared as well.
+ * 
+ * Caching of subwell data is optional, as subwell columns can be very large.
+ */
+public class MeasurementDataCache {
+
+	private final Map<ColumnKey, CompletableFuture<float[]>> wellData = new ConcurrentHashMap<>();
+	private final Map<ColumnKey, CompletableFuture<Object>> subWellData = new ConcurrentHashMap<>();
+	private final boolean cacheSubWellData;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public MeasurementDataCache(boolean cacheSubWellData) {
+		this.cacheSubWellData = cacheSubWellData;
+	}
+
+	/**
+	 * Get a well data column, loading it if it is not cached yet.
+	 * 
+	 * @param measId the measurement the column belongs to
+	 * @param columnName the name of the column
+	 * @param loader the loader to invoke on a cache miss
+	 * @param executor the executor to run the loader on, or null to run the loader on the calling thread
+	 * @return a future that completes with the column data, or exceptionally with the loader's exception
+	 */
+	public CompletableFuture<float[]> getWellData(long measId, String columnName, Callable<float[]> loader, Executor executor) {
+		return get(wellData, new ColumnKey(measId, columnName), loader, executor);
+	}
+
+	/**
+	 * Get a subwell data column, loading it if it is not cached yet.
+	 * If subwell data caching is disabled, the loader is always invoked.
+	 * 
+	 * @see #getWellData(long, String, Callable, Executor)
+	 */
+	public CompletableFuture<Object> getSubWellData(long measId, String columnName, Callable<Object> loader, Executor executor) {
+		if (!cacheSubWellData) {
+			missCount.incrementAndGet();
+			return load(null, null, new CompletableFuture<>(), loader, executor);
+		}
+		return get(subWellData, new ColumnKey(measId, columnName), loader, executor);
+	}
+
+	public boolean isCacheSubWellData() {
+		return cacheSubWellData;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Estimate the memory used by the cached columns that have been loaded so far.
+	 * 
+	 * @return the estimated size in bytes
+	 */
+	public long estimateSize() {
+		long size = 0;
+		for (CompletableFuture<float[]> column: wellData.values()) {
+			if (isLoaded(column)) size += estimateSize(column.join());
+		}
+		for (CompletableFuture<Object> column: subWellData.values()) {
+			if (isLoaded(column)) size += estimateSize(column.join());
+		}
+		return size;
+	}
+
+	public void clear() {
+		wellData.clear();
+		subWellData.clear();
+	}
+
+	private <T> CompletableFuture<T> get(Map<ColumnKey, CompletableFuture<T>> cache, ColumnKey key, Callable<T> loader, Executor executor) {
+		CompletableFuture<T> cached = cache.get(key);
+		if (cached == null) {
+			CompletableFuture<T> newEntry = new CompletableFuture<>();
+			cached = cache.putIfAbsent(key, newEntry);
+			if (cached == null) {
+				missCount.incrementAndGet();
+				return load(cache, key, newEntry, loader, executor);
+			}
+		}
+		hitCount.incrementAndGet();
+		return cached;
+	}
+
+	private <T> CompletableFuture<T> load(Map<ColumnKey, CompletableFuture<T>> cache, ColumnKey key, CompletableFuture<T> future, Callable<T> loader, Executor executor) {
+		Runnable task = () -> {
+			try {
+				future.complete(loader.call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		};
+		if (executor == null) {
+			task.run();
+			return future;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// Fail the callers that already wait for this column, and let the next caller retry the load
+			future.completeExceptionally(e);
+			if (cache != null) cache.remove(key, future);
+		}
+		return future;
+	}
+
+	private static boolean isLoaded(CompletableFuture<?> column) {
+		return column.isDone() && !column.isCompletedExceptionally();
+	}
+
+	private static long estimateSize(Object data) {
+		if (data instanceof float[]) return 4L * ((float[]) data).length;
+		if (data instanceof Map) return ((Map<?, ?>) data).values().stream().mapToLong(MeasurementDataCache::estimateSize).sum();
+		return 0;
+	}
+
+	private static record ColumnKey(long measId, String columnName) {}
+}
@@ -0,0 +1,114 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.math3.util.Precision;
+
+import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
+import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
+import eu.openanalytics.phaedra.util.WellNumberUtils;
+
+/**
+ * The wells of a plate, grouped by substance.
+ * 
+ * For each substance, the well ids, the (0-based) positions of the wells in the feature value arrays,
+ * the -log10 concentrations and the accept flags are stored as primitive arrays.
+ * The index is built once per plate and is shared by the curve fits of all features of that plate.
+ */
+public class SubstanceWellIndex {
+
+	private final Map<String, SubstanceWells> substanceWells;
+
+	public record SubstanceWells(long[] wellIds, int[] valueIndexes, float[] concs, float[] accepts) {
+
+		public int size() {
+			return wellIds.length;
+		}
+
+		/**
+		 * Get the feature values of these wells, in the same order as the well ids.
+		 */
+		public float[] getValues(float[] featureValues) {
+			float[] values = new float[valueIndexes.length];
+			for (int i = 0; i < valueIndexes.length; i++) {
+				values[i] = featureValues[valueIndexes[i]];
+			}
+			return values;
+		}
+	}
+
+	private static final SubstanceWells EMPTY = new SubstanceWells(new long[0], new int[0], new float[0], new float[0]);
+
+	private SubstanceWellIndex(Map<String, SubstanceWells> substanceWells) {
+		this.substanceWells = substanceWells;
+	}
+
+	public static SubstanceWellIndex build(PlateDTO plate, List<WellDTO> wells) {
+		boolean plateAccepted = plate.getValidationStatus().getCode() >= 0 && plate.getApprovalStatus().getCode() >= 0;
+
+		// Group the wells in a single pass, keeping the order in which the substances appear on the plate
+		Map<String, List<WellDTO>> wellsBySubstance = new LinkedHashMap<>();
+		for (WellDTO well: wells) {
+			if (well.getWellSubstance() == null || well.getWellSubstance().getName() == null) continue;
+			wellsBySubstance.computeIfAbsent(well.getWellSubstance().getName(), k -> new ArrayList<>()).add(well);
+		}
+
+		Map<String, SubstanceWells> substanceWells = new LinkedHashMap<>();
+		for (Map.Entry<String, List<WellDTO>> entry: wellsBySubstance.entrySet()) {
+			List<WellDTO> substanceWellList = entry.getValue();
+			int size = substanceWellList.size();
+			long[] wellIds = new long[size];
+			int[] valueIndexes = new int[size];
+			float[] concs = new float[size];
+			float[] accepts = new float[size];
+
+			for (int i = 0; i < size; i++) {
+				WellDTO well = substanceWellList.get(i);
+				wellIds[i] = well.getId();
+				valueIndexes[i] = WellNumberUtils.getWellNr(well.getRow(), well.getColumn(), plate.getColumns()) - 1;
+				float conc = well.getWellSubstance().getConcentration().floatValue();
+				concs[i] = (float) Precision.round(-Math.log10(conc), 3);
+				accepts[i] = (plateAccepted && well.getStatus().getCode() >= 0) ? 1 : 0;
+			}
+			substanceWells.put(entry.getKey(), new SubstanceWells(wellIds, valueIndexes, concs, accepts));
+		}
+		return new SubstanceWellIndex(substanceWells);
+	}
+
+	/**
+	 * @return the names of the substances on the plate, in order of appearance
+	 */
+	public List<String> getSubstances() {
+		return new ArrayList<>(substanceWells.keySet());
+	}
+
+	/**
+	 * @return the wells containing the given substance, or an empty entry if there are none
+	 */
+	public SubstanceWells getWells(String substanceName) {
+		return substanceWells.getOrDefault(substanceName, EMPTY);
+	}
+}
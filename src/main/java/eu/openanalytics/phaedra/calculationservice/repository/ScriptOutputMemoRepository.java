@@ -0,0 +1,47 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.repository;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+import org.springframework.data.jdbc.repository.query.Modifying;
+import org.springframework.data.jdbc.repository.query.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import eu.openanalytics.phaedra.calculationservice.model.ScriptOutputMemoEntry;
+
+public interface ScriptOutputMemoRepository extends CrudRepository<ScriptOutputMemoEntry, String> {
+
+    @Query("select * from script_output_memo m where m.memo_key = :memoKey and m.created_on > :since")
+    Optional<ScriptOutputMemoEntry> findValidEntry(@Param("memoKey") String memoKey, @Param("since") LocalDateTime since);
+
+    // The memo key is assigned, not generated: save() would attempt an update
+    @Modifying
+    @Query("insert into script_output_memo (memo_key, output, created_on) values (:memoKey, :output, :createdOn) on conflict (memo_key) do nothing")
+    void insertEntry(@Param("memoKey") String memoKey, @Param("output") String output, @Param("createdOn") LocalDateTime createdOn);
+
+    @Modifying
+    @Query("delete from script_output_memo where created_on <= :before")
+    void deleteExpiredEntries(@Param("before") LocalDateTime before);
+
+}
@@ -33,9 +33,12 @@ import org.springframework.stereotype.Service;
 import eu.openanalytics.phaedra.calculationservice.config.KafkaConfig;
 import eu.openanalytics.phaedra.calculationservice.dto.CalculationRequestDTO;
 import eu.openanalytics.phaedra.calculationservice.dto.CurveFittingRequestDTO;
+import eu.openanalytics.phaedra.calculationservice.dto.ResultFeatureStatBatchDTO;
+import eu.openanalytics.phaedra.calculationservice.dto.ScriptExecutionBatchOutputDTO;
 import eu.openanalytics.phaedra.calculationservice.service.protocol.CurveFittingExecutorService;
 import eu.openanalytics.phaedra.calculationservice.service.protocol.ProtocolExecutorService;
 import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionService;
+import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultFeatureStatDTO;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultSetDTO;
@@ -50,6 +53,8 @@ public class KafkaConsumerService {
     private CurveFittingExecutorService curveFittingExecutorService;
     @Autowired
     private ScriptExecutionService scriptExecutionService;
+    @Autowired
+    private PlateMetadataCache plateMetadataCache;
     
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -59,7 +64,8 @@ public class KafkaConsumerService {
         protocolExecutorService.execute(
                 calculationRequestDTO.getProtocolId(),
                 calculationRequestDTO.getPlateId(),
-                calculationRequestDTO.getMeasId());
+                calculationRequestDTO.getMeasId(),
+                calculationRequestDTO.getBaseResultSetId());
     }
 
     @KafkaListener(topics = KafkaConfig.TOPIC_CALCULATIONS, groupId = KafkaConfig.GROUP_ID + "_reqCurveFit", filter = "requestCurveFitFilter")
@@ -70,12 +76,23 @@ public class KafkaConsumerService {
                 curveFittingRequestDTO.getFeatureResultData());
     }
     
+    @KafkaListener(topics = KafkaConfig.TOPIC_PLATES, groupId = KafkaConfig.GROUP_ID + "_plateUpdated", filter = "plateUpdatedFilter")
+    public void onPlateUpdatedEvent(PlateDTO plate) {
+    	if (plate.getId() != null) plateMetadataCache.evictPlate(plate.getId());
+    }
+    
     @KafkaListener(topics = KafkaConfig.TOPIC_SCRIPTENGINE, groupId = KafkaConfig.GROUP_ID, filter = "scriptExecutionUpdateFilter")
     public void onScriptExecutionEvent(ScriptExecutionOutputDTO output) {
     	logger.info(KafkaConfig.GROUP_ID + ": received a script execution update event");
 		scriptExecutionService.handleScriptExecutionUpdate(output);
     }
     
+    @KafkaListener(topics = KafkaConfig.TOPIC_SCRIPTENGINE, groupId = KafkaConfig.GROUP_ID + "_batch", filter = "scriptExecutionBatchUpdateFilter")
+    public void onScriptExecutionBatchEvent(ScriptExecutionBatchOutputDTO batchOutput) {
+    	logger.info(KafkaConfig.GROUP_ID + ": received a script execution batch update event");
+    	scriptExecutionService.handleScriptExecutionBatchUpdate(batchOutput);
+    }
+    
     @KafkaListener(topics = KafkaConfig.TOPIC_RESULTDATA, groupId = KafkaConfig.GROUP_ID + "_resSet", filter = "resultSetUpdatedFilter")
     public void onResultSetEvent(ResultSetDTO resultSet) {
     	logger.info(KafkaConfig.GROUP_ID + ": received a resultSet update event");
@@ -93,4 +110,10 @@ public class KafkaConsumerService {
     	logger.info(KafkaConfig.GROUP_ID + ": received a resultFeatureStat update event");
     	protocolExecutorService.handleResultSetUpdate(resultFeatureStat);
     }
+    
+    @KafkaListener(topics = KafkaConfig.TOPIC_RESULTDATA, groupId = KafkaConfig.GROUP_ID + "_resStatsBatch", filter = "resultFeatureStatsUpdatedFilter")
+    public void onResultFeatureStatsEvent(ResultFeatureStatBatchDTO resultFeatureStats) {
+    	logger.info(KafkaConfig.GROUP_ID + ": received a resultFeatureStats update event");
+    	protocolExecutorService.handleResultSetUpdate(resultFeatureStats);
+    }
 }
@@ -27,7 +27,10 @@ import org.springframework.stereotype.Service;
 
 import eu.openanalytics.curvedataservice.dto.CurveDTO;
 import eu.openanalytics.phaedra.calculationservice.config.KafkaConfig;
+import eu.openanalytics.phaedra.calculationservice.dto.CurveDataBatchDTO;
 import eu.openanalytics.phaedra.calculationservice.dto.CurveFittingRequestDTO;
+import eu.openanalytics.phaedra.calculationservice.dto.ResultFeatureStatBatchDTO;
+import eu.openanalytics.phaedra.calculationservice.dto.ScriptExecutionBatchDTO;
 import eu.openanalytics.phaedra.calculationservice.dto.event.CalculationEvent;
 import eu.openanalytics.phaedra.plateservice.dto.PlateCalculationStatusDTO;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
@@ -55,6 +58,10 @@ public class KafkaProducerService {
         kafkaTemplate.send(KafkaConfig.TOPIC_CURVEDATA, KafkaConfig.EVENT_SAVE_CURVE, curveDTO);
     }
 
+    public void sendCurveDataBatch(CurveDataBatchDTO curveDataBatch) {
+        kafkaTemplate.send(KafkaConfig.TOPIC_CURVEDATA, KafkaConfig.EVENT_SAVE_CURVES, curveDataBatch);
+    }
+
     public void initiateCurveFitting(CurveFittingRequestDTO curveFitRequest) {
         kafkaTemplate.send(KafkaConfig.TOPIC_CALCULATIONS, KafkaConfig.EVENT_REQUEST_CURVE_FIT, curveFitRequest);
     }
@@ -68,8 +75,21 @@ public class KafkaProducerService {
             kafkaTemplate.send(KafkaConfig.TOPIC_RESULTDATA, KafkaConfig.EVENT_SAVE_RESULT_STATS, resultFeatureStatDTO.withResultSetId(resultSetId));
         }
     }
+
+    public void sendResultFeatureStatsBatch(Long resultSetId, Long featureId, List<ResultFeatureStatDTO> resultFeatureStats) {
+        ResultFeatureStatBatchDTO batch = ResultFeatureStatBatchDTO.builder()
+                .resultSetId(resultSetId)
+                .featureId(featureId)
+                .resultFeatureStats(resultFeatureStats.stream().map(fs -> fs.withResultSetId(resultSetId)).toList())
+                .build();
+        kafkaTemplate.send(KafkaConfig.TOPIC_RESULTDATA, KafkaConfig.EVENT_SAVE_RESULT_STATS_BATCH, batch);
+    }
     
     public void sendScriptExecutionRequest(ScriptExecutionInputDTO scriptRequest) {
     	kafkaTemplate.send(KafkaConfig.TOPIC_SCRIPTENGINE, KafkaConfig.EVENT_REQUEST_SCRIPT_EXECUTION, scriptRequest);
     }
+    
+    public void sendScriptExecutionBatch(ScriptExecutionBatchDTO scriptBatch) {
+    	kafkaTemplate.send(KafkaConfig.TOPIC_SCRIPTENGINE, KafkaConfig.EVENT_REQUEST_SCRIPT_EXECUTION_BATCH, scriptBatch);
+    }
 }
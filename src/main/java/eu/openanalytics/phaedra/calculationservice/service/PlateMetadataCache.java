@@ -0,0 +1,128 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import eu.openanalytics.phaedra.calculationservice.model.SubstanceWellIndex;
+import eu.openanalytics.phaedra.calculationservice.util.ExpiringLruCache;
+import eu.openanalytics.phaedra.calculationservice.util.MetricsProvider;
+import eu.openanalytics.phaedra.plateservice.client.PlateServiceClient;
+import eu.openanalytics.phaedra.plateservice.client.exception.PlateUnresolvableException;
+import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
+import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
+import eu.openanalytics.phaedra.protocolservice.client.ProtocolServiceClient;
+import eu.openanalytics.phaedra.protocolservice.client.exception.FeatureUnresolvableException;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+
+/**
+ * A short-lived cache of plate and feature metadata.
+ * 
+ * A single plate calculation triggers one curve fit request per feature, and each of these
+ * needs the same plate, wells (and the substance index built from them) and feature definition. Instead of fetching
+ * these from the plate and protocol services for every request, they are cached for a short time
+ * (phaedra2.calculation.plate-cache.ttl-seconds), for a limited number of plates (phaedra2.calculation.plate-cache.max-size).
+ * 
+ * Cached plates are evicted as soon as an update event for the plate is received, and whenever a new
+ * calculation of the plate starts. Cached features are evicted whenever a new calculation of their protocol starts.
+ */
+@Service
+public class PlateMetadataCache implements MetricsProvider {
+
+	private final PlateServiceClient plateServiceClient;
+	private final ProtocolServiceClient protocolServiceClient;
+
+	private final ExpiringLruCache<Long, PlateDTO> plates;
+	private final ExpiringLruCache<Long, List<WellDTO>> wells;
+	private final ExpiringLruCache<Long, SubstanceWellIndex> substanceWellIndexes;
+	private final ExpiringLruCache<Long, FeatureDTO> features;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public PlateMetadataCache(
+			PlateServiceClient plateServiceClient,
+			ProtocolServiceClient protocolServiceClient,
+			@Value("${phaedra2.calculation.plate-cache.ttl-seconds:60}") long ttlSeconds,
+			@Value("${phaedra2.calculation.plate-cache.max-size:100}") int maxSize) {
+
+		this.plateServiceClient = plateServiceClient;
+		this.protocolServiceClient = protocolServiceClient;
+
+		long ttlMillis = ttlSeconds * 1000;
+		this.plates = new ExpiringLruCache<>(maxSize, ttlMillis);
+		this.wells = new ExpiringLruCache<>(maxSize, ttlMillis);
+		this.substanceWellIndexes = new ExpiringLruCache<>(maxSize, ttlMillis);
+		// A protocol typically has a few dozen features, which are shared by all its plates
+		this.features = new ExpiringLruCache<>(maxSize * 10, ttlMillis);
+	}
+
+	public PlateDTO getPlate(long plateId) throws PlateUnresolvableException {
+		return plates.get(plateId, () -> plateServiceClient.getPlate(plateId));
+	}
+
+	public List<WellDTO> getWells(long plateId) throws PlateUnresolvableException {
+		return wells.get(plateId, () -> plateServiceClient.getWells(plateId));
+	}
+
+	/**
+	 * Get the wells of a plate grouped by substance, see {@link SubstanceWellIndex}.
+	 */
+	public SubstanceWellIndex getSubstanceWellIndex(long plateId) throws PlateUnresolvableException {
+		return substanceWellIndexes.get(plateId, () -> SubstanceWellIndex.build(getPlate(plateId), getWells(plateId)));
+	}
+
+	public FeatureDTO getFeature(long featureId) throws FeatureUnresolvableException {
+		return features.get(featureId, () -> protocolServiceClient.getFeature(featureId));
+	}
+
+	public void evictPlate(long plateId) {
+		logger.debug(String.format("Evicting cached metadata of plate %d", plateId));
+		plates.invalidate(plateId);
+		wells.invalidate(plateId);
+		substanceWellIndexes.invalidate(plateId);
+	}
+
+	public void evictFeature(long featureId) {
+		features.invalidate(featureId);
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "plateMetadataCache";
+	}
+
+	@Override
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<>();
+		metrics.put("plates", plates.size());
+		metrics.put("features", features.size());
+		metrics.put("hits", plates.getHits() + wells.getHits() + substanceWellIndexes.getHits() + features.getHits());
+		metrics.put("misses", plates.getMisses() + wells.getMisses() + substanceWellIndexes.getMisses() + features.getMisses());
+		return metrics;
+	}
+}
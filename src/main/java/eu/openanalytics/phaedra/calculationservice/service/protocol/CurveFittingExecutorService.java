@@ -29,151 +29,331 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.math3.util.Precision;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import eu.openanalytics.curvedataservice.dto.CurveDTO;
+import eu.openanalytics.phaedra.calculationservice.config.ExecutorConfig;
+import eu.openanalytics.phaedra.calculationservice.dto.CurveDataBatchDTO;
 import eu.openanalytics.phaedra.calculationservice.dto.DRCInputDTO;
 import eu.openanalytics.phaedra.calculationservice.enumeration.ScriptLanguage;
 import eu.openanalytics.phaedra.calculationservice.model.CurveFittingContext;
 import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.service.PlateMetadataCache;
+import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionBatch;
 import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionRequest;
 import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionService;
-import eu.openanalytics.phaedra.plateservice.client.PlateServiceClient;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationExecutor;
+import eu.openanalytics.phaedra.calculationservice.util.LogisticCurveFitter;
+import eu.openanalytics.phaedra.calculationservice.util.LogisticCurveFitter.FitResult;
+import eu.openanalytics.phaedra.calculationservice.util.NumericOutputParser.FloatArrayDeserializer;
 import eu.openanalytics.phaedra.plateservice.client.exception.PlateUnresolvableException;
-import eu.openanalytics.phaedra.plateservice.dto.WellSubstanceDTO;
-import eu.openanalytics.phaedra.protocolservice.client.ProtocolServiceClient;
 import eu.openanalytics.phaedra.protocolservice.client.exception.FeatureUnresolvableException;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
 import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
-import eu.openanalytics.phaedra.util.WellNumberUtils;
 
+/**
+ * Fits the dose-response curves of all substances of a plate, for one feature.
+ * 
+ * Curves are fitted in-process for the DRC models listed in phaedra2.calculation.curve-fit.native-models,
+ * and by the receptor2 R script otherwise. Script fits are composed on the futures of their outputs:
+ * no thread waits for a script output or for an in-flight slot (phaedra2.calculation.curve-fit.max-in-flight).
+ * Fits that do not get a slot are queued, and sent when another fit completes.
+ */
 @Service
 public class CurveFittingExecutorService {
 	
-    private final PlateServiceClient plateServiceClient;
-    private final ProtocolServiceClient protocolServiceClient;
+    private final PlateMetadataCache plateMetadataCache;
     
     private final KafkaProducerService kafkaProducerService;
     private final ScriptExecutionService scriptExecutionService;
     
     private final ObjectMapper objectMapper;
-    private final ExecutorService executorService;
+    private final CalculationExecutor curveFitExecutor;
+    
+    // The DRC models (by name) whose curves are fitted in-process, instead of by the receptor2 R script
+    private final Set<String> nativeFitModels;
+    private final LogisticCurveFitter logisticCurveFitter = new LogisticCurveFitter(0.95);
+    
+    // Limits the number of receptor2 fits that are waiting for the script engine, over all plates.
+    // Fits that do not get a slot wait in the pending queue, and are sent when another fit completes.
+    private final Semaphore inFlightFits;
+    private final Queue<PendingFit> pendingFits = new ConcurrentLinkedQueue<>();
+    // The number of sendPendingFits calls that still have to be served: only one caller sends at a time
+    private final AtomicInteger sendRequests = new AtomicInteger();
+    
+    // If true, the curves of a plate and feature are published in a single message once all of them are fitted
+    private final boolean batchCurvePublish;
     private final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private static final String NATIVE_FIT_VERSION = "java-4pl-0.0.1";
 
     public CurveFittingExecutorService(
-    		PlateServiceClient plateServiceClient,
-    		ProtocolServiceClient protocolServiceClient,
+    		PlateMetadataCache plateMetadataCache,
     		KafkaProducerService kafkaProducerService,
     		ScriptExecutionService scriptExecutionService,
-    		ObjectMapper objectMapper) {
+    		ObjectMapper objectMapper,
+    		@Qualifier(ExecutorConfig.CURVE_FIT_EXECUTOR) CalculationExecutor curveFitExecutor,
+    		@Value("${phaedra2.calculation.curve-fit.native-models:}") Set<String> nativeFitModels,
+    		@Value("${phaedra2.calculation.curve-fit.max-in-flight:100}") int maxInFlightFits,
+    		@Value("${phaedra2.calculation.curve-fit.batch-publish:false}") boolean batchCurvePublish) {
     	
-        this.plateServiceClient = plateServiceClient;
-        this.protocolServiceClient = protocolServiceClient;
+        this.plateMetadataCache = plateMetadataCache;
         
         this.kafkaProducerService = kafkaProducerService;
         this.scriptExecutionService = scriptExecutionService;
         
         this.objectMapper = objectMapper;
-        
-        executorService = Executors.newCachedThreadPool();
+        this.curveFitExecutor = curveFitExecutor;
+        this.nativeFitModels = nativeFitModels;
+        this.inFlightFits = new Semaphore(maxInFlightFits);
+        this.batchCurvePublish = batchCurvePublish;
     }
 
     public record CurveFittingExecution(CompletableFuture<Long> curveId, Future<List<CurveDTO>> curves) {};
 
+    private record PendingFit(DRCInputDTO drcInput, CompletableFuture<CurveDTO> curve) {};
+
     public CurveFittingExecution execute(long plateId, ResultDataDTO featureResultData) {
         var curveIdFuture = new CompletableFuture<Long>();
-        return new CurveFittingExecution(curveIdFuture, executorService.submit(() -> {
-            try {
-                return executeCurveFit(curveIdFuture, plateId, featureResultData);
-            } catch (Throwable ex) {
-                // print the stack strace. Since the future may never be awaited, we may not see the error otherwise
-                ex.printStackTrace();
-                throw ex;
-            }
-        }));
+        var curvesFuture = new CompletableFuture<List<CurveDTO>>();
+        try {
+            curveFitExecutor.execute(() -> {
+                try {
+                    executeCurveFit(curveIdFuture, plateId, featureResultData).whenComplete((curves, ex) -> {
+                        if (ex == null) curvesFuture.complete(curves);
+                        else curvesFuture.completeExceptionally(ex);
+                    });
+                } catch (Throwable ex) {
+                    // log the error. Since the future may never be awaited, we may not see the error otherwise
+                    logger.error("Unexpected error during curve fitting", ex);
+                    curvesFuture.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.warn(String.format("Curve fit rejected [Pl=%d F=%d]: %s", plateId, featureResultData.getFeatureId(), ex.getMessage()));
+            curvesFuture.completeExceptionally(ex);
+        }
+        return new CurveFittingExecution(curveIdFuture, curvesFuture);
     }
 
-    private List<CurveDTO> executeCurveFit(CompletableFuture<Long> curveIdFuture, long plateId, ResultDataDTO featureResultData) throws PlateUnresolvableException, FeatureUnresolvableException {
-        var plate  = plateServiceClient.getPlate(plateId);
-        var wells = plateServiceClient.getWells(plateId);
+    private CompletableFuture<List<CurveDTO>> executeCurveFit(CompletableFuture<Long> curveIdFuture, long plateId, ResultDataDTO featureResultData) throws PlateUnresolvableException, FeatureUnresolvableException {
+        var plate  = plateMetadataCache.getPlate(plateId);
+        var wells = plateMetadataCache.getWells(plateId);
 
         if (featureResultData == null) {
             logger.info("Feature result data is null!!");
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
 
         logger.info("Get feature by featureId: " + featureResultData.getFeatureId());
-        var feature = protocolServiceClient.getFeature(featureResultData.getFeatureId());
+        var feature = plateMetadataCache.getFeature(featureResultData.getFeatureId());
         if (feature.getDrcModel() == null) {
             logger.info("No drcModel found featureId: " + featureResultData.getFeatureId());
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
 
-        var wellSubstances = plateServiceClient.getWellSubstances(plateId);
-        var wellSubstancesUnique = wellSubstances
-                .stream()
-                .map(WellSubstanceDTO::getName)
-                .collect(Collectors.toList())
-                .stream()
-                .distinct()
-                .collect(Collectors.toList());
+        var substanceWellIndex = plateMetadataCache.getSubstanceWellIndex(plateId);
+        var wellSubstancesUnique = substanceWellIndex.getSubstances();
         logger.info("Number of unique substances for plate " + plate + " is " + wellSubstancesUnique.size());
 
         if (CollectionUtils.isEmpty(wellSubstancesUnique))
-            return null; //TODO: Return a proper error
+            return CompletableFuture.completedFuture(null); //TODO: Return a proper error
 
-        List<Object[]> curvesToFit = new ArrayList<>();
-            for (String wellSubstance: wellSubstancesUnique) {
-                curvesToFit.add(new Object[] { wellSubstance, feature.getId() });
-            }
-        var cfCtx = CurveFittingContext.newInstance(plate, wells, wellSubstances, wellSubstancesUnique, feature, feature.getDrcModel());
+        var cfCtx = CurveFittingContext.newInstance(plate, wells, wellSubstancesUnique, substanceWellIndex, feature, feature.getDrcModel());
 
-        List<CurveDTO> results = new ArrayList<>();
-        for (Object[] o : curvesToFit) {
-            String substance = (String) o[0];
+        // Fit all substances concurrently. Script fits are queued, and sent in batches as in-flight slots become available.
+        boolean useNativeFit = nativeFitModels.contains(feature.getDrcModel().getName());
+        List<CompletableFuture<CurveDTO>> curveFutures = new ArrayList<>();
+        for (String substance : wellSubstancesUnique) {
             logger.info("Fit curve for substance " + substance + " and featureId " + featureResultData.getFeatureId());
             DRCInputDTO drcInput = collectCurveFitInputData(cfCtx, substance, featureResultData);
-            
-            ScriptExecutionRequest request = executeReceptor2CurveFit(drcInput);
-            try { request.awaitOutput(); } catch (InterruptedException e) {}
-            
-            ScriptExecutionOutputDTO outputDTO = request.getOutput();
-            if (isNotBlank(outputDTO.getOutput())) {
-                logger.info("Output is " + outputDTO.getOutput());
-                try {
-                    OutputWrapper outputWrapper = objectMapper.readValue(outputDTO.getOutput(), OutputWrapper.class);
-                    if (outputWrapper.output != null) {
-                        createNewCurve(drcInput, outputWrapper.output);
+            if (useNativeFit) {
+                curveFutures.add(fitAsync(drcInput, () -> executeNativeCurveFit(drcInput)));
+            } else {
+                var pendingFit = new PendingFit(drcInput, new CompletableFuture<>());
+                pendingFits.add(pendingFit);
+                curveFutures.add(pendingFit.curve());
+            }
+        }
+        sendPendingFits();
+
+        return CompletableFuture.allOf(curveFutures.toArray(CompletableFuture[]::new))
+                .thenApply(v -> {
+                    List<CurveDTO> curves = curveFutures.stream().map(CompletableFuture::join).filter(Objects::nonNull).toList();
+                    if (batchCurvePublish && !curves.isEmpty()) {
+                        kafkaProducerService.sendCurveDataBatch(CurveDataBatchDTO.builder()
+                                .plateId(plateId)
+                                .featureId(featureResultData.getFeatureId())
+                                .resultSetId(featureResultData.getResultSetId())
+                                .curves(curves)
+                                .build());
                     }
-                } catch (JsonProcessingException e) {
-                	//TODO: Process error correctly
-                	logger.error("No curve is created due to " + e.getMessage());
+                    return curves;
+                });
+    }
+
+    /**
+     * Send as many pending fits as there are free in-flight slots. This never waits for a slot:
+     * when a fit completes, its slot is released and the next pending fits are sent.
+     * 
+     * Outputs may complete while their fits are being sent (e.g. memoized outputs), which calls this method again.
+     * Such calls are served by the loop of the caller that is already sending, instead of recursively.
+     */
+    private void sendPendingFits() {
+        if (sendRequests.getAndIncrement() > 0) return;
+        int requests = 1;
+        do {
+            try {
+                sendAvailableFits();
+            } catch (RuntimeException ex) {
+                // Submitted requests that were not sent are retried when they time out
+                logger.error("Unexpected error while sending curve fits", ex);
+            }
+            requests = sendRequests.addAndGet(-requests);
+        } while (requests > 0);
+    }
+
+    private void sendAvailableFits() {
+        List<PendingFit> fits = new ArrayList<>();
+        while (!pendingFits.isEmpty() && inFlightFits.tryAcquire()) {
+            PendingFit fit = pendingFits.poll();
+            if (fit == null) inFlightFits.release();
+            else fits.add(fit);
+        }
+        if (fits.isEmpty()) return;
+
+        ScriptExecutionBatch batch = scriptExecutionService.newBatch(new HashMap<>(), null);
+        for (PendingFit fit : fits) {
+            try {
+                var outputFuture = executeReceptor2CurveFit(fit.drcInput(), batch).getOutputFuture();
+                outputFuture.whenComplete((output, ex) -> {
+                    inFlightFits.release();
+                    sendPendingFits();
+                });
+                outputFuture.thenCompose(output -> fitAsync(fit.drcInput(), () -> processReceptor2Output(fit.drcInput(), output)))
+                        .whenComplete((curve, ex) -> {
+                            if (ex == null) fit.curve().complete(curve);
+                            else fit.curve().completeExceptionally(ex);
+                        });
+            } catch (RuntimeException ex) {
+                inFlightFits.release();
+                fit.curve().completeExceptionally(ex);
+            }
+        }
+        batch.submit();
+    }
+
+    /**
+     * Fit a curve on the curve fit executor. If the executor rejects the fit, no curve is created for
+     * this substance, but the curves of the other substances are still fitted and published.
+     */
+    private CompletableFuture<CurveDTO> fitAsync(DRCInputDTO drcInput, Supplier<CurveDTO> fit) {
+        var curve = new CompletableFuture<CurveDTO>();
+        try {
+            curveFitExecutor.execute(() -> {
+                try {
+                    curve.complete(fit.get());
+                } catch (Throwable ex) {
+                    curve.completeExceptionally(ex);
                 }
-            } else {
-                logger.info("Not output is created!!");
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.warn(String.format("Curve fit rejected [Pl=%d F=%d S=%s]: %s", drcInput.getPlateId(), drcInput.getFeatureId(), drcInput.getSubstance(), ex.getMessage()));
+            curve.complete(null);
+        }
+        return curve;
+    }
+
+    private CurveDTO processReceptor2Output(DRCInputDTO drcInput, ScriptExecutionOutputDTO outputDTO) {
+        if (isNotBlank(outputDTO.getOutput())) {
+            logger.info("Output is " + outputDTO.getOutput());
+            try {
+                OutputWrapper outputWrapper = objectMapper.readValue(outputDTO.getOutput(), OutputWrapper.class);
+                if (outputWrapper.output != null) {
+                    return createNewCurve(drcInput, outputWrapper.output);
+                }
+            } catch (JsonProcessingException e) {
+            	//TODO: Process error correctly
+            	logger.error("No curve is created due to " + e.getMessage());
             }
+        } else {
+            logger.info("Not output is created!!");
         }
+        return null;
+    }
 
-        return results;
+    private CurveDTO executeNativeCurveFit(DRCInputDTO drcInput) {
+        logger.info(String.format("Fitting curve in-process for substance %s and feature ID %s", drcInput.getSubstance(), drcInput.getFeatureId()));
+        var slope = drcInput.getDrcModel().isPresent() ? drcInput.getDrcModel().get().getSlope() : "ascending";
+        var fitResult = logisticCurveFitter.fit(drcInput.getConcs(), drcInput.getValues(), drcInput.getAccepts(), 0.0, !"descending".equalsIgnoreCase(slope));
+        if (fitResult == null) {
+            logger.info("No curve is created: not enough valid data points, or the fit failed");
+            return null;
+        }
+        return createNewCurve(drcInput, fitResult);
+    }
+
+    private CurveDTO createNewCurve(DRCInputDTO drcInput, FitResult fitResult) {
+        // An undetermined standard error is reported as missing, not as the string "NaN"
+        double pIC50StdErr = fitResult.pIC50().stdError();
+        CurveDTO curveDTO = CurveDTO.builder()
+                .substanceName(drcInput.getSubstance())
+                .plateId(drcInput.getPlateId())
+                .protocolId(drcInput.getProtocolId())
+                .featureId(drcInput.getFeatureId())
+                .resultSetId(drcInput.getResultSetId())
+                .wells(drcInput.getWells())
+                .wellConcentrations(drcInput.getConcs())
+                .featureValues(drcInput.getValues())
+                .fitDate(new Date())
+                .version(NATIVE_FIT_VERSION)
+                .plotDoseData(fitResult.plotDoses())
+                .plotPredictionData(fitResult.plotPredictions())
+                .weights(fitResult.weights())
+                .pIC50(fitResult.pIC50toReport())
+                .pIC50StdErr(Double.isNaN(pIC50StdErr) ? null : String.valueOf(pIC50StdErr))
+                .eMax((float) fitResult.eMax())
+                .eMin((float) fitResult.eMin())
+                .eMaxConc((float) fitResult.eMaxDose())
+                .eMinConc((float) fitResult.eMinDose())
+                .pIC20((float) fitResult.pIC20())
+                .pIC80((float) fitResult.pIC80())
+                .slope((float) fitResult.slope().estimate())
+                .bottom((float) fitResult.bottom().estimate())
+                .top((float) fitResult.top().estimate())
+                .slopeLowerCI((float) fitResult.slope().lowerCI())
+                .slopeUpperCI((float) fitResult.slope().upperCI())
+                .residualVariance((float) fitResult.residualVariance())
+                .warning(fitResult.warning())
+                .build();
+        if (!batchCurvePublish) kafkaProducerService.sendCurveData(curveDTO);
+        return curveDTO;
     }
 
-    private void createNewCurve(DRCInputDTO drcInput, DRCOutputDTO drcOutput) {
+    private CurveDTO createNewCurve(DRCInputDTO drcInput, DRCOutputDTO drcOutput) {
         CurveDTO curveDTO = CurveDTO.builder()
                 .substanceName(drcInput.getSubstance())
                 .plateId(drcInput.getPlateId())
@@ -204,35 +384,18 @@ public class CurveFittingExecutorService {
                 .residualVariance(isCreatable(drcOutput.residualVariance) ? parseFloat(drcOutput.residualVariance) : NaN)
                 .warning(drcOutput.warning)
                 .build();
-        kafkaProducerService.sendCurveData(curveDTO);
+        if (!batchCurvePublish) kafkaProducerService.sendCurveData(curveDTO);
+        return curveDTO;
     }
 
     private DRCInputDTO collectCurveFitInputData(CurveFittingContext ctx, String substanceName, ResultDataDTO featureResult) {
-        var wells = ctx.getWells().stream()
-                .filter(w -> w.getWellSubstance() != null && w.getWellSubstance().getName().equals(substanceName))
-                .collect(Collectors.toList());
+        var substanceWells = ctx.getSubstanceWellIndex().getWells(substanceName);
         var drcModelDTO = ctx.getDrcModel();
 
-        long[] wellIds = new long[wells.size()];
-        float[] values = new float[wells.size()];
-        float[] concs = new float[wells.size()];
-        float[] accepts = new float[wells.size()];
-
-        for (int i = 0; i < wells.size(); i++) {
-            // Set the well id
-            wellIds[i] = wells.get(i).getId();
-
-            // Set the well substance concentration value
-            float conc = wells.get(i).getWellSubstance().getConcentration().floatValue();
-            concs[i] = (float) Precision.round(-Math.log10(conc), 3);
-
-            // Set the well accept value (true or false)
-            accepts[i] = (wells.get(i).getStatus().getCode() >= 0 && ctx.getPlate().getValidationStatus().getCode() >= 0 && ctx.getPlate().getApprovalStatus().getCode() >= 0) ? 1 : 0;
-
-            // Set the well feature value
-            var valueIndex = WellNumberUtils.getWellNr(wells.get(i).getRow(), wells.get(i).getColumn(), ctx.getPlate().getColumns()) - 1;
-            values[i] = featureResult.getValues()[valueIndex];
-        }
+        long[] wellIds = substanceWells.wellIds();
+        float[] values = substanceWells.getValues(featureResult.getValues());
+        float[] concs = substanceWells.concs();
+        float[] accepts = substanceWells.accepts();
 
         return DRCInputDTO.builder()
                 .substance(substanceName)
@@ -246,7 +409,7 @@ public class CurveFittingExecutorService {
                 .build();
     }
 
-    private ScriptExecutionRequest executeReceptor2CurveFit(DRCInputDTO inputDTO) {
+    private ScriptExecutionRequest executeReceptor2CurveFit(DRCInputDTO inputDTO, ScriptExecutionBatch batch) {
         logger.info(String.format("Fitting curve for substance %s and feature ID %s", inputDTO.getSubstance(), inputDTO.getFeatureId()));
 
         var inputVariables = new HashMap<String, Object>();
@@ -293,7 +456,7 @@ public class CurveFittingExecutorService {
                 // "output$pIC50Location <- value$pIC50Location[1]\n" +
                 // "output$pIC50LocationPrediction <- value$pIC50Location[2]\n" +
         
-        return scriptExecutionService.submit(ScriptLanguage.R, script, inputVariables);
+        return batch.add(ScriptLanguage.R, script, inputVariables, null);
     }
 
     private static class OutputWrapper {
@@ -324,7 +487,7 @@ public class CurveFittingExecutorService {
                             @JsonProperty(value = "validpIC80") ValidICDTO validpIC80,
                             @JsonProperty(value = "rangeResults") RangeResultsDTO rangeResults,
                             @JsonProperty(value = "dataPredict2Plot") DataPredict2PlotDTO dataPredict2Plot,
-                            @JsonProperty(value = "weights") float[] weights,
+                            @JsonProperty(value = "weights") @JsonDeserialize(using = FloatArrayDeserializer.class) float[] weights,
                             @JsonProperty(value = "modelCoefs") ModelCoefsDTO modelCoefs,
                             @JsonProperty(value = "residulaVariance") String residualVariance,
                             @JsonProperty(value = "warningFit") String warning) {
@@ -349,10 +512,10 @@ public class CurveFittingExecutorService {
         public float[] upper;
 
         @JsonCreator
-        private DataPredict2PlotDTO(@JsonProperty(value = "dose") float[] dose,
-                                    @JsonProperty(value = "Prediction") float[] prediction,
-                                    @JsonProperty(value = "Lower") float[] lower,
-                                    @JsonProperty(value = "Upper") float[] upper) {
+        private DataPredict2PlotDTO(@JsonProperty(value = "dose") @JsonDeserialize(using = FloatArrayDeserializer.class) float[] dose,
+                                    @JsonProperty(value = "Prediction") @JsonDeserialize(using = FloatArrayDeserializer.class) float[] prediction,
+                                    @JsonProperty(value = "Lower") @JsonDeserialize(using = FloatArrayDeserializer.class) float[] lower,
+                                    @JsonProperty(value = "Upper") @JsonDeserialize(using = FloatArrayDeserializer.class) float[] upper) {
             this.dose = dose;
             this.prediction = prediction;
             this.lower = lower;
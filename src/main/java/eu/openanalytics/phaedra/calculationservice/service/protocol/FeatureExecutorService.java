@@ -20,17 +20,20 @@
  */
 package eu.openanalytics.phaedra.calculationservice.service.protocol;
 
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiConsumer;
 
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
-import com.fasterxml.jackson.annotation.JsonCreator;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import eu.openanalytics.phaedra.calculationservice.config.ExecutorConfig;
 import eu.openanalytics.phaedra.calculationservice.dto.CurveFittingRequestDTO;
 import eu.openanalytics.phaedra.calculationservice.enumeration.CalculationScope;
 import eu.openanalytics.phaedra.calculationservice.exception.CalculationException;
@@ -38,13 +41,17 @@ import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
 import eu.openanalytics.phaedra.calculationservice.model.Formula;
 import eu.openanalytics.phaedra.calculationservice.model.ModelMapper;
 import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionBatch;
 import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionRequest;
 import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionService;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationExecutor;
 import eu.openanalytics.phaedra.calculationservice.util.CalculationInputHelper;
+import eu.openanalytics.phaedra.calculationservice.util.NumericOutputParser;
 import eu.openanalytics.phaedra.measurementservice.client.MeasurementServiceClient;
 import eu.openanalytics.phaedra.measurementservice.client.exception.MeasUnresolvableException;
 import eu.openanalytics.phaedra.protocolservice.dto.CalculationInputValueDTO;
 import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+import eu.openanalytics.phaedra.protocolservice.enumeration.InputSource;
 import eu.openanalytics.phaedra.resultdataservice.client.ResultDataServiceClient;
 import eu.openanalytics.phaedra.resultdataservice.client.exception.ResultDataUnresolvableException;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
@@ -73,6 +80,8 @@ public class FeatureExecutorService {
     
     private final ObjectMapper objectMapper;
     private final ModelMapper modelMapper;
+    
+    private final CalculationExecutor protocolExecutor;
 
     public FeatureExecutorService(
     		MeasurementServiceClient measurementServiceClient, 
@@ -80,7 +89,8 @@ public class FeatureExecutorService {
     		FeatureStatExecutorService featureStatExecutorService,
     		ScriptExecutionService scriptExecutionService,
     		KafkaProducerService kafkaProducerService,
-    		ModelMapper modelMapper, ObjectMapper objectMapper) {
+    		ModelMapper modelMapper, ObjectMapper objectMapper,
+    		@Qualifier(ExecutorConfig.PROTOCOL_EXECUTOR) CalculationExecutor protocolExecutor) {
     	
         this.measurementServiceClient = measurementServiceClient;
         this.resultDataServiceClient = resultDataServiceClient;
@@ -89,13 +99,49 @@ public class FeatureExecutorService {
         this.kafkaProducerService = kafkaProducerService;
         this.objectMapper = objectMapper;
         this.modelMapper = modelMapper;
+        this.protocolExecutor = protocolExecutor;
+    }
+
+    /**
+     * Start fetching all measurement columns that are referenced by the given features.
+     * Each distinct column is fetched once per calculation, and the columns are fetched concurrently.
+     * This operation does not block: features will wait for their columns in {@link #executeFeature}.
+     */
+    public void prefetchMeasurementData(CalculationContext ctx, List<FeatureDTO> features) {
+    	var cache = ctx.getMeasurementDataCache();
+    	for (FeatureDTO feature: features) {
+    		if (feature.getCivs() == null) continue;
+    		for (var civ: feature.getCivs()) {
+    			String columnName = civ.getSourceMeasColName();
+    			if (columnName == null || columnName.trim().isEmpty()) continue;
+    			
+    			if (civ.getInputSource() == InputSource.MEASUREMENT_WELL_COLUMN) {
+    				cache.getWellData(ctx.getMeasId(), columnName,
+    						() -> measurementServiceClient.getWellData(ctx.getMeasId(), columnName), protocolExecutor);
+    			} else if (civ.getInputSource() == InputSource.MEASUREMENT_SUBWELL_COLUMN && cache.isCacheSubWellData()) {
+    				cache.getSubWellData(ctx.getMeasId(), columnName,
+    						() -> measurementServiceClient.getSubWellData(ctx.getMeasId(), columnName), protocolExecutor);
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Create a batch for the calculation requests of a group of features.
+     * The info about the wells, which is used by all features, is shared by the requests of the batch.
+     */
+    public ScriptExecutionBatch newBatch(CalculationContext ctx) {
+    	Map<String, Object> sharedInputVariables = new HashMap<String, Object>();
+    	CalculationInputHelper.addWellInfo(sharedInputVariables, ctx);
+    	return scriptExecutionService.newBatch(sharedInputVariables, ctx.getScriptMessageStatistics());
     }
 
     /**
      * Calculate the value for a feature.
-     * This operation does not block, and will return as soon as the request is launched.
+     * This operation does not block, and will return as soon as the request is added to the batch.
+     * Note that, depending on the batch, the request may only be launched when the batch is submitted.
      */
-    public ScriptExecutionRequest executeFeature(CalculationContext ctx, FeatureDTO feature, Integer currentSequence) {
+    public ScriptExecutionRequest executeFeature(CalculationContext ctx, FeatureDTO feature, Integer currentSequence, ScriptExecutionBatch batch) {
     	
     	// Retrieve and validate the formula
     	Formula formula = ctx.getProtocolData().formulas.get(feature.getFormulaId());
@@ -115,11 +161,21 @@ public class FeatureExecutorService {
     		return null;
     	}
     	
-    	// Submit the calculation request
-    	ScriptExecutionRequest request = scriptExecutionService
-			.submit(formula.getLanguage(), formula.getFormula(), inputVariables)
-			.addCallback(output -> {
+    	// Add the calculation request to the batch
+    	ScriptExecutionRequest request = batch.add(formula.getLanguage(), formula.getFormula(), inputVariables, output -> {
 	    		float[] outputValues = parseNumericValues(output);
+	    		boolean success = output.getStatusCode() == ResponseStatusCode.SUCCESS;
+	    		
+	    		// Record the outcome before publishing the result data: its echo may trigger
+	    		// the features that reference this feature, which need its values
+	    		if (success && outputValues != null) {
+	    			ctx.getFeatureValues().put(feature.getId(), outputValues);
+	    		} else if (success) {
+	    			ctx.getErrorCollector().addError("Script output contains no numeric values", output, feature, formula);
+	    		} else {
+	            	ctx.getErrorCollector().addError(String.format("Script execution failed with status %s", output.getStatusCode()), output, feature, formula);
+	            	ctx.getCalculationProgress().updateProgressFeature(feature.getId(), true);
+	    		}
 	    		
 	    		// Publish the result data
 	    		ResultDataDTO resultData = ResultDataDTO.builder()
@@ -132,17 +188,18 @@ public class FeatureExecutorService {
 	    		        .build();
 	    		kafkaProducerService.sendResultData(resultData);
 	    		
-	    		if (output.getStatusCode() == ResponseStatusCode.SUCCESS) {
+	    		if (success) {
 	    			// Submit feature stats calculation
 	    			featureStatExecutorService.executeFeatureStats(ctx, feature, outputValues);
 	    			
 	    			// Submit curve fitting request
 	    			var curveFitRequest = new CurveFittingRequestDTO(ctx.getPlate().getId(), resultData.getFeatureId(), resultData);
 	    			kafkaProducerService.initiateCurveFitting(curveFitRequest);
-	            } else {
-	            	ctx.getErrorCollector().addError(String.format("Script execution failed with status %s", output.getStatusCode()), output, feature, formula);
-	            	ctx.getCalculationProgress().updateProgressFeature(feature.getId(), true);
 	            }
+    	}, ex -> {
+    		// The callback failed halfway: make sure the feature does not stall the calculation
+    		ctx.getErrorCollector().addError("Unexpected error while processing the feature output", feature, ex);
+    		ctx.getCalculationProgress().updateProgressFeature(feature.getId(), true);
     	});
     	return request;
     }
@@ -168,7 +225,7 @@ public class FeatureExecutorService {
                 	errorHandler.accept("Feature reference is missing ID", civ);
             	} else {
             		try {
-						inputVariables.put(civ.getVariableName(), resultDataServiceClient.getResultData(ctx.getResultSetId(), civ.getSourceFeatureId()).getValues());
+						inputVariables.put(civ.getVariableName(), getFeatureValues(ctx, civ.getSourceFeatureId()));
 					} catch (ResultDataUnresolvableException e) {
 						errorHandler.accept("Failed to retrieve feature source data", civ);
 					}
@@ -179,7 +236,7 @@ public class FeatureExecutorService {
             		errorHandler.accept("Measurement reference is missing column name", civ);
             	} else {
             		try {
-            			inputVariables.put(civ.getVariableName(), measurementServiceClient.getWellData(ctx.getMeasId(), civ.getSourceMeasColName()));
+            			inputVariables.put(civ.getVariableName(), getWellData(ctx, civ.getSourceMeasColName()));
             		} catch (MeasUnresolvableException e) {
             			errorHandler.accept("Failed to retrieve measurement source welldata", civ);
             		}
@@ -190,7 +247,7 @@ public class FeatureExecutorService {
             		errorHandler.accept("Measurement reference is missing column name", civ);
             	} else {
             		try {
-            			inputVariables.put(civ.getVariableName(), measurementServiceClient.getSubWellData(ctx.getMeasId(), civ.getSourceMeasColName()));
+            			inputVariables.put(civ.getVariableName(), getSubWellData(ctx, civ.getSourceMeasColName()));
             		} catch (MeasUnresolvableException e) {
             			errorHandler.accept("Failed to retrieve measurement source subwelldata", civ);
             		}            		
@@ -201,43 +258,44 @@ public class FeatureExecutorService {
             }
         }
 
-        // Add commonly used info about the wells
-        CalculationInputHelper.addWellInfo(inputVariables, ctx);
-        
         return inputVariables;
     }
     
+    private float[] getFeatureValues(CalculationContext ctx, long featureId) throws ResultDataUnresolvableException {
+    	float[] values = ctx.getFeatureValues().get(featureId);
+    	// The values are not retained if the feature was calculated before a restart of this service.
+    	if (values == null) values = resultDataServiceClient.getResultData(ctx.getResultSetId(), featureId).getValues();
+    	return values;
+    }
+    
+    private float[] getWellData(CalculationContext ctx, String columnName) throws MeasUnresolvableException {
+    	// On a cache miss, the column is fetched on the calling thread.
+    	return awaitColumn(ctx.getMeasurementDataCache().getWellData(ctx.getMeasId(), columnName,
+    			() -> measurementServiceClient.getWellData(ctx.getMeasId(), columnName), null));
+    }
+    
+    private Object getSubWellData(CalculationContext ctx, String columnName) throws MeasUnresolvableException {
+    	return awaitColumn(ctx.getMeasurementDataCache().getSubWellData(ctx.getMeasId(), columnName,
+    			() -> measurementServiceClient.getSubWellData(ctx.getMeasId(), columnName), null));
+    }
+    
+    private <T> T awaitColumn(CompletableFuture<T> column) throws MeasUnresolvableException {
+    	try {
+    		return column.join();
+    	} catch (CompletionException e) {
+    		if (e.getCause() instanceof MeasUnresolvableException) throw (MeasUnresolvableException) e.getCause();
+    		if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+    		throw e;
+    	}
+    }
+    
     private float[] parseNumericValues(ScriptExecutionOutputDTO output) {
     	if (output.getOutput() == null || output.getStatusCode() != ResponseStatusCode.SUCCESS) return null;
-    	
-    	String[] outputStrings = null;
     	try {
-    		OutputWrapper outputValue = objectMapper.readValue(output.getOutput(), OutputWrapper.class);
-    		outputStrings = outputValue.output;
-    	} catch (JsonProcessingException e) {
+    		return NumericOutputParser.parseFloatArray(objectMapper.getFactory(), output.getOutput(), "output");
+    	} catch (IOException e) {
     		return null;
     	}
-    	if (outputStrings == null) return null;
-    	
-    	float[] numericOutput = new float[outputStrings.length];
-        for (int i = 0; i < numericOutput.length; i++) {
-            try {
-            	numericOutput[i] = Float.parseFloat(outputStrings[i]);
-            } catch (Exception e) {
-            	numericOutput[i] = Float.NaN;
-            }
-        }
-        return numericOutput;
-    }
-    
-    private static class OutputWrapper {
-
-        public final String[] output;
-
-        @JsonCreator
-        private OutputWrapper(@JsonProperty(value = "output", required = true) String[] output) {
-            this.output = output;
-        }
     }
 }
 
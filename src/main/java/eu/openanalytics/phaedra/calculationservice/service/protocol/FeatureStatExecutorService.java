@@ -27,26 +27,35 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
+import eu.openanalytics.phaedra.calculationservice.enumeration.ScriptLanguage;
 import eu.openanalytics.phaedra.calculationservice.exception.CalculationException;
 import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
 import eu.openanalytics.phaedra.calculationservice.model.Formula;
 import eu.openanalytics.phaedra.calculationservice.model.ModelMapper;
 import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.service.script.JavaStatExecutor;
+import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionBatch;
 import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionService;
+import eu.openanalytics.phaedra.calculationservice.util.NumericOutputParser;
 import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
 import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
 import eu.openanalytics.phaedra.protocolservice.dto.FeatureStatDTO;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultFeatureStatDTO;
+import eu.openanalytics.phaedra.resultdataservice.enumeration.StatusCode;
+import eu.openanalytics.phaedra.scriptengine.dto.ResponseStatusCode;
 import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
 
 /**
@@ -56,59 +65,183 @@ import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
  * but also stats for each welltype present in the plate.
  * 
  * Feature Stats can be calculated as soon as the Feature itself has been calculated.
+ * Built-in JAVASTAT stats are calculated in-process by the {@link JavaStatExecutor},
+ * other stats are offloaded to the script engine.
  */
 @Service
 public class FeatureStatExecutorService {
 
 	private final ScriptExecutionService scriptExecutionService;
+	private final JavaStatExecutor javaStatExecutor;
     private final KafkaProducerService kafkaProducerService;
 
     private final ObjectMapper objectMapper;
     private final ModelMapper modelMapper;
     
+    // If true, the stat values of a feature are sent in a single message instead of one message per value
+    private final boolean batchPublish;
+    
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
-    public FeatureStatExecutorService(ObjectMapper objectMapper, ModelMapper modelMapper, KafkaProducerService kafkaProducerService, ScriptExecutionService scriptExecutionService) {
+    public FeatureStatExecutorService(ObjectMapper objectMapper, ModelMapper modelMapper, KafkaProducerService kafkaProducerService,
+    		ScriptExecutionService scriptExecutionService, JavaStatExecutor javaStatExecutor,
+    		@Value("${phaedra2.calculation.feature-stats.batch-publish:false}") boolean batchPublish) {
         this.objectMapper = objectMapper;
         this.modelMapper = modelMapper;
         this.kafkaProducerService = kafkaProducerService;
         this.scriptExecutionService = scriptExecutionService;
+        this.javaStatExecutor = javaStatExecutor;
+        this.batchPublish = batchPublish;
     }
 
     public void executeFeatureStats(CalculationContext ctx, FeatureDTO feature, float[] values) {
         List<FeatureStatDTO> statsToCalculate = ctx.getProtocolData().featureStats.get(feature.getId());
         log(logger, ctx, "Calculating %d featureStats for feature %d", statsToCalculate.size(), feature.getId());
 
-        // Submit all stat calculation requests
+        // Submit all stat calculation requests. The feature values are shared by all stats of the feature.
+        ScriptExecutionBatch batch = scriptExecutionService.newBatch(collectSharedStatInputData(ctx, values), ctx.getScriptMessageStatistics());
+        StatResultPublisher publisher = new StatResultPublisher(ctx, feature);
         for (FeatureStatDTO fs: statsToCalculate) {
         	Formula formula = ctx.getProtocolData().formulas.get(fs.getFormulaId());
-        	Map<String, Object> inputData = collectStatInputData(ctx, feature, fs, values);
         	
-        	scriptExecutionService
-        		.submit(formula.getLanguage(), formula.getFormula(), inputData)
-        		.addCallback(output -> {
-					try {
-						List<ResultFeatureStatDTO> results = parseResults(ctx, feature, fs, output);
-						kafkaProducerService.sendResultFeatureStats(ctx.getResultSetId(), results);
-						log(logger, ctx, "Sent %d featureStat values for feature %d", results.size(), feature.getId());
-					} catch (JsonProcessingException e) {
-						ctx.getErrorCollector().addError("Invalid format received for feature stat response", output, feature, fs);
+        	// Built-in JAVASTAT stats are calculated in-process
+        	if (formula.getLanguage() == ScriptLanguage.JAVASTAT && javaStatExecutor.isSupported(formula.getFormula())) {
+        		publisher.publish(calculateJavaStat(ctx, feature, fs, formula, values));
+        		continue;
+        	}
+        	
+        	Map<String, Object> inputData = collectStatInputData(fs);
+        	
+        	publisher.expectResults();
+        	batch.add(formula.getLanguage(), formula.getFormula(), inputData, output -> {
+				try {
+					if (output.getStatusCode() != ResponseStatusCode.SUCCESS || output.getOutput() == null) {
+						// E.g. a script error, or a request that timed out without output
+						ctx.getErrorCollector().addError(String.format("Script execution failed with status %s", output.getStatusCode()), output, feature, fs);
+						publisher.publish(createFailedResults(ctx, feature, fs, output.getStatusMessage(), output.getExitCode()));
+					} else {
+						publisher.publish(parseResults(ctx, feature, fs, output));
 					}
+				} catch (JsonProcessingException | RuntimeException e) {
+					ctx.getErrorCollector().addError("Invalid format received for feature stat response", output, feature, fs, e);
+					publisher.publish(createFailedResults(ctx, feature, fs, "Invalid feature stat output", output.getExitCode()));
+				} finally {
+					publisher.resultsReceived();
+				}
         	});
         }
+        batch.submit();
+        publisher.resultsReceived();
+    }
+
+    /**
+     * Publishes the feature stat values of a single feature.
+     * 
+     * Without batching, the values of each stat are sent as soon as they are available, one message per value.
+     * With batching, the values of all stats are collected and sent as a single message, once the last stat is calculated.
+     */
+    private class StatResultPublisher {
+
+    	private final CalculationContext ctx;
+    	private final FeatureDTO feature;
+    	private final List<ResultFeatureStatDTO> collectedResults = new ArrayList<>();
+    	// Starts at 1 for the caller that is still submitting the stats
+    	private final AtomicInteger pendingStats = new AtomicInteger(1);
+
+    	public StatResultPublisher(CalculationContext ctx, FeatureDTO feature) {
+    		this.ctx = ctx;
+    		this.feature = feature;
+    	}
+
+    	public void expectResults() {
+    		pendingStats.incrementAndGet();
+    	}
+
+    	public void publish(List<ResultFeatureStatDTO> results) {
+    		if (batchPublish) {
+    			synchronized (collectedResults) {
+    				collectedResults.addAll(results);
+    			}
+    		} else {
+    			kafkaProducerService.sendResultFeatureStats(ctx.getResultSetId(), results);
+    			log(logger, ctx, "Sent %d featureStat values for feature %d", results.size(), feature.getId());
+    		}
+    	}
+
+    	public void resultsReceived() {
+    		if (pendingStats.decrementAndGet() > 0 || !batchPublish) return;
+    		List<ResultFeatureStatDTO> results;
+    		synchronized (collectedResults) {
+    			results = new ArrayList<>(collectedResults);
+    		}
+    		if (results.isEmpty()) return;
+    		kafkaProducerService.sendResultFeatureStatsBatch(ctx.getResultSetId(), feature.getId(), results);
+    		log(logger, ctx, "Sent %d featureStat values for feature %d in a single batch", results.size(), feature.getId());
+    	}
     }
 
-    private Map<String, Object> collectStatInputData(CalculationContext ctx, FeatureDTO feature, FeatureStatDTO featureStat, float[] values) {
+    private Map<String, Object> collectSharedStatInputData(CalculationContext ctx, float[] values) {
     	Map<String, Object> input = new HashMap<String, Object>();
         input.put("lowWelltype", ctx.getProtocolData().protocol.getLowWelltype());
         input.put("highWelltype", ctx.getProtocolData().protocol.getHighWelltype());
         input.put("welltypes", ctx.getWells().stream().map(WellDTO::getWellType).toList());
         input.put("featureValues", values);
+        return input;
+    }
+
+    private Map<String, Object> collectStatInputData(FeatureStatDTO featureStat) {
+    	Map<String, Object> input = new HashMap<String, Object>();
         input.put("isPlateStat", featureStat.getPlateStat());
         input.put("isWelltypeStat", featureStat.getWelltypeStat());
         return input;
     }
 
+    /**
+     * Calculate a built-in stat in-process. A stat that cannot be calculated is recorded as an error and
+     * yields a single failed value, so that the other stats of the feature are still calculated.
+     */
+    private List<ResultFeatureStatDTO> calculateJavaStat(CalculationContext ctx, FeatureDTO feature, FeatureStatDTO featureStat, Formula formula, float[] values) {
+    	List<ResultFeatureStatDTO> results = new ArrayList<>();
+    	List<String> wellTypes = ctx.getWells().stream().map(WellDTO::getWellType).toList();
+    	if (values == null) values = new float[0];
+    	
+    	try {
+	    	if (featureStat.getPlateStat()) {
+	    		float value = javaStatExecutor.calculatePlateValue(formula.getFormula(), values, wellTypes,
+	    				ctx.getProtocolData().protocol.getLowWelltype(), ctx.getProtocolData().protocol.getHighWelltype());
+	    		results.add(parseResult(feature, featureStat, StatusCode.SUCCESS, null, 0, value, null));
+	    	} else if (featureStat.getWelltypeStat()) {
+	    		Map<String, Float> wellTypeValues = javaStatExecutor.calculateWelltypeValues(formula.getFormula(), values, wellTypes);
+	    		for (var entry: wellTypeValues.entrySet()) {
+	    			results.add(parseResult(feature, featureStat, StatusCode.SUCCESS, null, 0, entry.getValue(), entry.getKey()));
+	    		}
+	    	} else {
+	    		String message = String.format("Invalid feature stat: %s", featureStat.getName());
+	    		ctx.getErrorCollector().addError(message, feature, featureStat);
+	    		return createFailedResults(ctx, feature, featureStat, message, -1);
+	    	}
+    	} catch (RuntimeException e) {
+    		String message = String.format("Failed to calculate feature stat %s: %s", featureStat.getName(), e.getMessage());
+    		ctx.getErrorCollector().addError(message, e, feature, featureStat);
+    		return createFailedResults(ctx, feature, featureStat, message, -1);
+    	}
+    	
+    	return results;
+    }
+    
+    /**
+     * Create the failed values of a stat that could not be calculated: one value for a plate stat,
+     * or one value per welltype otherwise, matching the results that the calculation progress expects.
+     */
+    private List<ResultFeatureStatDTO> createFailedResults(CalculationContext ctx, FeatureDTO feature, FeatureStatDTO featureStat, String statusMessage, Integer exitCode) {
+    	if (featureStat.getPlateStat()) {
+    		return List.of(parseResult(feature, featureStat, StatusCode.FAILURE, statusMessage, exitCode, Float.NaN, null));
+    	}
+    	return ctx.getWells().stream().map(WellDTO::getWellType).distinct()
+    			.map(wellType -> parseResult(feature, featureStat, StatusCode.FAILURE, statusMessage, exitCode, Float.NaN, wellType))
+    			.toList();
+    }
+
     private List<ResultFeatureStatDTO> parseResults(CalculationContext ctx, FeatureDTO feature, FeatureStatDTO featureStat, ScriptExecutionOutputDTO output) throws JsonProcessingException {
     	List<ResultFeatureStatDTO> results = new ArrayList<>();
     	
@@ -131,15 +264,19 @@ public class FeatureStatExecutorService {
     }
     
     private ResultFeatureStatDTO parseResult(FeatureDTO feature, FeatureStatDTO featureStat, ScriptExecutionOutputDTO output, Float value, String wellType) {
+    	return parseResult(feature, featureStat, modelMapper.map(output.getStatusCode()), output.getStatusMessage(), output.getExitCode(), value, wellType);
+    }
+    
+    private ResultFeatureStatDTO parseResult(FeatureDTO feature, FeatureStatDTO featureStat, StatusCode statusCode, String statusMessage, Integer exitCode, Float value, String wellType) {
     	return ResultFeatureStatDTO.builder()
 	        .featureId(feature.getId())
 	        .featureStatId(featureStat.getId())
 	        .value(value)
 	        .statisticName(featureStat.getName())
 	        .welltype(wellType)
-	        .statusCode(modelMapper.map(output.getStatusCode()))
-	        .statusMessage(output.getStatusMessage())
-	        .exitCode(output.getExitCode())
+	        .statusCode(statusCode)
+	        .statusMessage(statusMessage)
+	        .exitCode(exitCode)
 	        .build();	
     }
 
@@ -150,8 +287,8 @@ public class FeatureStatExecutorService {
 
         @JsonCreator
         private OutputWrapper(
-                @JsonProperty(value = "plateValue", required = true) Float plateValue,
-                @JsonProperty(value = "welltypeValues", required = true) Map<String, Float> welltypeValues) {
+                @JsonProperty(value = "plateValue", required = true) @JsonDeserialize(using = NumericOutputParser.FloatDeserializer.class) Float plateValue,
+                @JsonProperty(value = "welltypeValues", required = true) @JsonDeserialize(contentUsing = NumericOutputParser.FloatDeserializer.class) Map<String, Float> welltypeValues) {
             this.plateValue = plateValue;
             this.welltypeValues = welltypeValues;
         }
@@ -0,0 +1,211 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.protocol;
+
+import static eu.openanalytics.phaedra.calculationservice.util.LoggerHelper.log;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import eu.openanalytics.phaedra.calculationservice.dto.CurveFittingRequestDTO;
+import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
+import eu.openanalytics.phaedra.calculationservice.model.Formula;
+import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureStatDTO;
+import eu.openanalytics.phaedra.resultdataservice.client.ResultDataServiceClient;
+import eu.openanalytics.phaedra.resultdataservice.client.exception.ResultDataUnresolvableException;
+import eu.openanalytics.phaedra.resultdataservice.client.exception.ResultFeatureStatUnresolvableException;
+import eu.openanalytics.phaedra.resultdataservice.client.exception.ResultSetUnresolvableException;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultFeatureStatDTO;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultSetDTO;
+import eu.openanalytics.phaedra.resultdataservice.enumeration.StatusCode;
+
+/**
+ * Incremental recalculation: instead of calculating all features of a protocol again,
+ * reuse the results of an earlier calculation (the base result set) of the same protocol, plate and measurement.
+ * 
+ * A feature is calculated again if its formula was created (as a new version) or updated after the base
+ * calculation started, if the base result set has no successful result for it, or if it references another
+ * feature that is calculated again, directly or indirectly. The results of all other features are copied into
+ * the new result set, and are tracked like calculated results. Their feature stats are copied as well,
+ * unless a stat is missing from the base result set or its formula has changed: then the stats of the feature
+ * are calculated again from the copied values. Curves are fitted again from the copied values.
+ * 
+ * Note that changes to the features themselves (e.g. to their input values) cannot be detected:
+ * such changes require a full calculation.
+ */
+@Service
+public class IncrementalCalculationService {
+
+	private final ResultDataServiceClient resultDataServiceClient;
+	private final FeatureStatExecutorService featureStatExecutorService;
+	private final KafkaProducerService kafkaProducerService;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public IncrementalCalculationService(ResultDataServiceClient resultDataServiceClient,
+			FeatureStatExecutorService featureStatExecutorService, KafkaProducerService kafkaProducerService) {
+		this.resultDataServiceClient = resultDataServiceClient;
+		this.featureStatExecutorService = featureStatExecutorService;
+		this.kafkaProducerService = kafkaProducerService;
+	}
+
+	/**
+	 * The results of the base result set that are reused by a calculation.
+	 */
+	public record Plan(Map<Long, ResultDataDTO> reusedData, Map<Long, List<ResultFeatureStatDTO>> reusedStats) {}
+
+	/**
+	 * Determine which features of the calculation can reuse the results of the base result set.
+	 * These features are added to the context's reused features, and their values are retained in the context,
+	 * for the features that reference them. Nothing is published yet, see {@link #publishReusedResults(CalculationContext, Plan)}.
+	 * 
+	 * @return The plan, or null if the base result set does not belong to the same protocol, plate and measurement.
+	 */
+	public Plan createPlan(CalculationContext ctx, long baseResultSetId)
+			throws ResultSetUnresolvableException, ResultDataUnresolvableException, ResultFeatureStatUnresolvableException {
+
+		ResultSetDTO baseResultSet = resultDataServiceClient.getResultSet(baseResultSetId);
+		if (!Objects.equals(baseResultSet.getProtocolId(), ctx.getProtocolData().protocol.getId())
+				|| !Objects.equals(baseResultSet.getPlateId(), ctx.getPlate().getId())
+				|| !Objects.equals(baseResultSet.getMeasId(), ctx.getMeasId())) {
+			logger.warn(String.format("Result set %d does not match [Pr=%d Pl=%d M=%d], calculating all features", baseResultSetId,
+					ctx.getProtocolData().protocol.getId(), ctx.getPlate().getId(), ctx.getMeasId()));
+			return null;
+		}
+		LocalDateTime baseStart = baseResultSet.getExecutionStartTimeStamp();
+
+		Map<Long, ResultDataDTO> baseData = new HashMap<>();
+		for (ResultDataDTO data: resultDataServiceClient.getResultData(baseResultSetId)) {
+			if (data.getStatusCode() == StatusCode.SUCCESS && data.getValues() != null) baseData.put(data.getFeatureId(), data);
+		}
+		Map<Long, List<ResultFeatureStatDTO>> baseStats = resultDataServiceClient.getResultFeatureStat(baseResultSetId).stream()
+				.collect(Collectors.groupingBy(ResultFeatureStatDTO::getFeatureId));
+
+		// Find the features that changed, then add the features that depend on them
+		Set<Long> changedFeatureIds = new HashSet<>();
+		for (FeatureDTO feature: ctx.getProtocolData().protocol.getFeatures()) {
+			Formula formula = ctx.getProtocolData().formulas.get(feature.getFormulaId());
+			if (!baseData.containsKey(feature.getId()) || isChangedSince(formula, baseStart)) changedFeatureIds.add(feature.getId());
+		}
+		Set<Long> dirtyFeatureIds = ctx.getFeatureDependencyGraph().getTransitiveDependents(changedFeatureIds);
+
+		Map<Long, ResultDataDTO> reusedData = new HashMap<>();
+		Map<Long, List<ResultFeatureStatDTO>> reusedStats = new HashMap<>();
+		for (FeatureDTO feature: ctx.getProtocolData().protocol.getFeatures()) {
+			if (dirtyFeatureIds.contains(feature.getId())) continue;
+			ResultDataDTO data = baseData.get(feature.getId());
+			reusedData.put(feature.getId(), data);
+			List<ResultFeatureStatDTO> stats = baseStats.getOrDefault(feature.getId(), List.of());
+			if (canReuseStats(ctx, feature, stats, baseStart)) reusedStats.put(feature.getId(), getCurrentStats(ctx, feature, stats));
+
+			ctx.getFeatureValues().put(feature.getId(), data.getValues());
+			ctx.getReusedFeatureIds().add(feature.getId());
+		}
+
+		log(logger, ctx, "Incremental calculation from result set %d: calculating features %s, reusing %d features",
+				baseResultSetId, dirtyFeatureIds, reusedData.size());
+		return new Plan(reusedData, reusedStats);
+	}
+
+	/**
+	 * Copy the reused results into the calculation's result set. The copies are published like calculated results,
+	 * so that the calculation progress picks them up.
+	 */
+	public void publishReusedResults(CalculationContext ctx, Plan plan) {
+		for (FeatureDTO feature: ctx.getProtocolData().protocol.getFeatures()) {
+			ResultDataDTO baseData = plan.reusedData().get(feature.getId());
+			if (baseData == null) continue;
+
+			ResultDataDTO resultData = ResultDataDTO.builder()
+					.resultSetId(ctx.getResultSetId())
+					.featureId(feature.getId())
+					.values(baseData.getValues())
+					.statusCode(baseData.getStatusCode())
+					.statusMessage(baseData.getStatusMessage())
+					.exitCode(baseData.getExitCode())
+					.build();
+			kafkaProducerService.sendResultData(resultData);
+
+			List<ResultFeatureStatDTO> stats = plan.reusedStats().get(feature.getId());
+			if (stats != null) {
+				if (!stats.isEmpty()) kafkaProducerService.sendResultFeatureStats(ctx.getResultSetId(), stats.stream().map(fs -> fs.withId(null)).toList());
+			} else {
+				featureStatExecutorService.executeFeatureStats(ctx, feature, baseData.getValues());
+			}
+
+			kafkaProducerService.initiateCurveFitting(new CurveFittingRequestDTO(ctx.getPlate().getId(), feature.getId(), resultData));
+		}
+	}
+
+	/**
+	 * Check whether the base result set contains a successful value for every stat (and welltype) of the feature,
+	 * and none of the stat formulas has changed since.
+	 */
+	private boolean canReuseStats(CalculationContext ctx, FeatureDTO feature, List<ResultFeatureStatDTO> baseStats, LocalDateTime baseStart) {
+		List<FeatureStatDTO> featureStats = ctx.getProtocolData().featureStats.getOrDefault(feature.getId(), List.of());
+		Set<String> welltypes = ctx.getWells().stream().map(WellDTO::getWellType).collect(Collectors.toSet());
+		for (FeatureStatDTO featureStat: featureStats) {
+			if (isChangedSince(ctx.getProtocolData().formulas.get(featureStat.getFormulaId()), baseStart)) return false;
+			Set<String> baseWelltypes = new HashSet<>();
+			boolean hasPlateValue = false;
+			for (ResultFeatureStatDTO baseStat: baseStats) {
+				if (!featureStat.getId().equals(baseStat.getFeatureStatId()) || baseStat.getStatusCode() != StatusCode.SUCCESS) continue;
+				if (baseStat.getWelltype() == null) hasPlateValue = true;
+				else baseWelltypes.add(baseStat.getWelltype());
+			}
+			boolean complete = featureStat.getPlateStat() ? hasPlateValue : baseWelltypes.containsAll(welltypes);
+			if (!complete) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Select the successful stat values of stats that are still part of the protocol.
+	 */
+	private List<ResultFeatureStatDTO> getCurrentStats(CalculationContext ctx, FeatureDTO feature, List<ResultFeatureStatDTO> baseStats) {
+		Set<Long> statIds = ctx.getProtocolData().featureStats.getOrDefault(feature.getId(), List.of()).stream()
+				.map(FeatureStatDTO::getId)
+				.collect(Collectors.toSet());
+		return baseStats.stream()
+				.filter(fs -> statIds.contains(fs.getFeatureStatId()) && fs.getStatusCode() == StatusCode.SUCCESS)
+				.toList();
+	}
+
+	private static boolean isChangedSince(Formula formula, LocalDateTime time) {
+		if (formula == null || time == null) return true;
+		if (formula.getCreatedOn() != null && formula.getCreatedOn().isAfter(time)) return true;
+		return formula.getUpdatedOn() != null && formula.getUpdatedOn().isAfter(time);
+	}
+}
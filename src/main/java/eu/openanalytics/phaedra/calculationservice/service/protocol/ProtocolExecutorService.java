@@ -23,25 +23,43 @@ package eu.openanalytics.phaedra.calculationservice.service.protocol;
 import static eu.openanalytics.phaedra.calculationservice.util.LoggerHelper.log;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import eu.openanalytics.phaedra.calculationservice.config.ExecutorConfig;
+import eu.openanalytics.phaedra.calculationservice.dto.ResultFeatureStatBatchDTO;
 import eu.openanalytics.phaedra.calculationservice.dto.event.CalculationEvent;
+import eu.openanalytics.phaedra.calculationservice.enumeration.SchedulingMode;
 import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
+import eu.openanalytics.phaedra.calculationservice.model.MeasurementDataCache;
 import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
-import eu.openanalytics.phaedra.plateservice.client.PlateServiceClient;
+import eu.openanalytics.phaedra.calculationservice.service.PlateMetadataCache;
+import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionBatch;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationContextRegistry;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationExecutor;
+import eu.openanalytics.phaedra.calculationservice.util.MetricsProvider;
 import eu.openanalytics.phaedra.plateservice.client.exception.PlateUnresolvableException;
 import eu.openanalytics.phaedra.plateservice.dto.PlateCalculationStatusDTO;
 import eu.openanalytics.phaedra.plateservice.enumeration.CalculationStatus;
 import eu.openanalytics.phaedra.protocolservice.client.exception.ProtocolUnresolvableException;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
 import eu.openanalytics.phaedra.resultdataservice.client.ResultDataServiceClient;
+import eu.openanalytics.phaedra.resultdataservice.client.exception.ResultDataUnresolvableException;
+import eu.openanalytics.phaedra.resultdataservice.client.exception.ResultFeatureStatUnresolvableException;
 import eu.openanalytics.phaedra.resultdataservice.client.exception.ResultSetUnresolvableException;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultFeatureStatDTO;
@@ -55,73 +73,209 @@ import eu.openanalytics.phaedra.resultdataservice.enumeration.StatusCode;
  * A protocol consists of a list of features, which must be executed in the correct order.
  * Therefore, the features are grouped into "sequences", and each sequence must be completed
  * before the next sequence can start.
+ * 
+ * By default, a sequence is only completed once the feature stats of its features are uploaded as well.
+ * Since features cannot reference feature stats, this can be disabled with the property
+ * phaedra2.calculation.await-feature-stats: the feature stats then complete in the background.
+ * 
+ * Alternatively, with {@link SchedulingMode#DEPENDENCY}, the sequences are ignored and each feature
+ * is executed as soon as the data of the features it references is available.
+ * 
+ * Plate calculations and the collection of their input data run on the bounded protocol executor,
+ * see {@link ExecutorConfig}.
+ * 
+ * If a base result set is given, the calculation is incremental: only the features that are affected
+ * by changes since the base result set are calculated, see {@link IncrementalCalculationService}.
  */
 @Service
-public class ProtocolExecutorService {
+public class ProtocolExecutorService implements MetricsProvider {
 
 	private final FeatureExecutorService featureExecutorService;
+	private final IncrementalCalculationService incrementalCalculationService;
 	
     private final ResultDataServiceClient resultDataServiceClient;
-    private final PlateServiceClient plateServiceClient;
+    private final PlateMetadataCache plateMetadataCache;
 
     private final ProtocolDataCollector protocolDataCollector;
     private final KafkaProducerService kafkaProducerService;
     
-    private final Map<Long, CalculationContext> activeContexts = new ConcurrentHashMap<>();
+    private final CalculationExecutor protocolExecutor;
+    private final boolean cacheSubWellData;
+    private final SchedulingMode schedulingMode;
+    private final boolean awaitFeatureStats;
+    
+    private final CalculationContextRegistry activeContexts;
+    private final AtomicLong timedOutRuns = new AtomicLong();
+    private final AtomicInteger queuedRuns = new AtomicInteger();
+    private final AtomicInteger rejectedRuns = new AtomicInteger();
+    private final AtomicLong measurementCacheHits = new AtomicLong();
+    private final AtomicLong measurementCacheMisses = new AtomicLong();
     
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     public ProtocolExecutorService(
     		FeatureExecutorService featureExecutorService,
+    		IncrementalCalculationService incrementalCalculationService,
     		ResultDataServiceClient resultDataServiceClient,
     		ProtocolDataCollector protocolDataCollector,
-    		PlateServiceClient plateServiceClient,
-    		KafkaProducerService kafkaProducerService) {
+    		PlateMetadataCache plateMetadataCache,
+    		KafkaProducerService kafkaProducerService,
+    		@Qualifier(ExecutorConfig.PROTOCOL_EXECUTOR) CalculationExecutor protocolExecutor,
+    		@Value("${phaedra2.calculation.measurement-cache.subwell-data:true}") boolean cacheSubWellData,
+    		@Value("${phaedra2.calculation.scheduling-mode:SEQUENCE}") SchedulingMode schedulingMode,
+    		@Value("${phaedra2.calculation.await-feature-stats:true}") boolean awaitFeatureStats,
+    		@Value("${phaedra2.calculation.context.idle-timeout-minutes:30}") long contextIdleTimeout,
+    		@Value("${phaedra2.calculation.context.max-duration-minutes:240}") long contextMaxDuration,
+    		@Value("${phaedra2.calculation.context.max-memory-mb:1024}") long contextMaxMemory) {
     	
     	this.featureExecutorService= featureExecutorService; 
+    	this.incrementalCalculationService = incrementalCalculationService;
         this.resultDataServiceClient = resultDataServiceClient;
         this.protocolDataCollector = protocolDataCollector;
-        this.plateServiceClient = plateServiceClient;
+        this.plateMetadataCache = plateMetadataCache;
         this.kafkaProducerService = kafkaProducerService;
+        this.protocolExecutor = protocolExecutor;
+        this.cacheSubWellData = cacheSubWellData;
+        this.schedulingMode = schedulingMode;
+        this.awaitFeatureStats = awaitFeatureStats;
+        this.activeContexts = new CalculationContextRegistry(
+        		TimeUnit.MINUTES.toMillis(contextIdleTimeout), TimeUnit.MINUTES.toMillis(contextMaxDuration), contextMaxMemory * 1024 * 1024);
     }
 
     public Future<Long> execute(long protocolId, long plateId, long measId) {
+    	return execute(protocolId, plateId, measId, null);
+    }
+    
+    /**
+     * @param baseResultSetId An earlier result set of the same protocol, plate and measurement, to recalculate
+     * incrementally from. If null, all features are calculated.
+     */
+    public Future<Long> execute(long protocolId, long plateId, long measId, Long baseResultSetId) {
         var resultSetIdFuture = new CompletableFuture<Long>();
-        ForkJoinPool.commonPool().submit(() -> {
-            try {
-                triggerProtocolExecution(resultSetIdFuture, protocolId, plateId, measId);
-            } catch (Throwable ex) {
-            	logger.error("Unexpected error during protocol calculation", ex);
-                ex.printStackTrace();
-            }
-        });
+        queuedRuns.incrementAndGet();
+        try {
+        	protocolExecutor.execute(() -> {
+        		queuedRuns.decrementAndGet();
+        		try {
+        			triggerProtocolExecution(resultSetIdFuture, protocolId, plateId, measId, baseResultSetId);
+        		} catch (Throwable ex) {
+        			logger.error("Unexpected error during protocol calculation", ex);
+        			resultSetIdFuture.completeExceptionally(ex);
+        		}
+        	});
+        } catch (RejectedExecutionException ex) {
+        	queuedRuns.decrementAndGet();
+        	rejectedRuns.incrementAndGet();
+        	logger.warn(String.format("Plate calculation rejected [Pr=%d Pl=%d M=%d]: %s", protocolId, plateId, measId, ex.getMessage()));
+        	resultSetIdFuture.completeExceptionally(ex);
+        }
         return resultSetIdFuture;
     }
 
-    private void triggerProtocolExecution(CompletableFuture<Long> resultSetIdFuture, long protocolId, long plateId, long measId) throws ProtocolUnresolvableException, ResultSetUnresolvableException, PlateUnresolvableException {
+    private void triggerProtocolExecution(CompletableFuture<Long> resultSetIdFuture, long protocolId, long plateId, long measId, Long baseResultSetId) throws ProtocolUnresolvableException, ResultSetUnresolvableException, PlateUnresolvableException {
     	// Collect all required input data and create a ResultSet instance
         var protocolData = protocolDataCollector.getProtocolData(protocolId);
-        var plate = plateServiceClient.getPlate(plateId);
-        var wells = plateServiceClient.getWells(plateId);
+        // A calculation must see the current plate layout and feature definitions: refresh the cached metadata, which the curve fits of this run will reuse
+        plateMetadataCache.evictPlate(plateId);
+        protocolData.protocol.getFeatures().forEach(f -> plateMetadataCache.evictFeature(f.getId()));
+        var plate = plateMetadataCache.getPlate(plateId);
+        var wells = plateMetadataCache.getWells(plateId);
         var resultSet = resultDataServiceClient.createResultDataSet(protocolId, plateId, measId);
         resultSetIdFuture.complete(resultSet.getId());
         
-        CalculationContext ctx = CalculationContext.newInstance(protocolData, plate, wells, resultSet.getId(), measId);
+        CalculationContext ctx = CalculationContext.newInstance(protocolData, plate, wells, resultSet.getId(), measId,
+        		new MeasurementDataCache(cacheSubWellData));
         log(logger, ctx, "Executing protocol %d", protocolId);
         emitCalculationEvent(ctx, CalculationStatus.CALCULATION_IN_PROGRESS);
-        activeContexts.put(resultSet.getId(), ctx);
+        activeContexts.register(ctx);
+        
+        IncrementalCalculationService.Plan incrementalPlan = null;
+        if (baseResultSetId != null) {
+        	try {
+        		incrementalPlan = incrementalCalculationService.createPlan(ctx, baseResultSetId);
+        	} catch (ResultSetUnresolvableException | ResultDataUnresolvableException | ResultFeatureStatUnresolvableException e) {
+        		ctx.getErrorCollector().addError("Failed to retrieve the base result set for incremental calculation", baseResultSetId, e);
+        		handleCalculationEnded(ctx);
+        		return;
+        	}
+        }
 
-        // Start the first sequence
-        triggerSequenceExecution(ctx, ctx.getCalculationProgress().getCurrentSequence());
+        if (schedulingMode == SchedulingMode.DEPENDENCY) {
+        	List<Long> cyclicFeatures = ctx.getFeatureDependencyGraph().findCyclicFeatures();
+        	if (!cyclicFeatures.isEmpty()) {
+        		ctx.getErrorCollector().addError("Features have circular references", cyclicFeatures);
+        		handleCalculationEnded(ctx);
+        		return;
+        	}
+        	// Start all features that do not reference other features
+        	ctx.getFeatureDependencyGraph().markLaunched(ctx.getReusedFeatureIds());
+        	triggerReadyFeatures(ctx);
+        } else {
+        	// Start the first sequence
+        	triggerSequenceExecution(ctx, ctx.getCalculationProgress().getCurrentSequence());
+        }
+        
+        if (incrementalPlan != null) {
+        	// Publish the reused results after the first features have been started: their result events
+        	// may advance the calculation, which must not launch the first features a second time.
+        	incrementalCalculationService.publishReusedResults(ctx, incrementalPlan);
+        	if (schedulingMode == SchedulingMode.SEQUENCE) advanceCompletedSequences(ctx);
+        }
     }
     
     private void triggerSequenceExecution(CalculationContext ctx, Integer sequence) {
     	log(logger, ctx, "Executing sequence %d", sequence);
-    	ctx.getProtocolData().protocol.getFeatures().parallelStream()
+    	List<FeatureDTO> features = ctx.getProtocolData().protocol.getFeatures().stream()
         		.filter(f -> f.getSequence() == sequence)
-        		.map(f -> featureExecutorService.executeFeature(ctx, f, sequence))
-        		.filter(r -> r != null)
+        		.filter(f -> !ctx.getReusedFeatureIds().contains(f.getId()))
         		.toList();
+    	if (!features.isEmpty()) executeFeatures(ctx, features);
+    }
+    
+    private void triggerReadyFeatures(CalculationContext ctx) {
+    	if (ctx.getErrorCollector().hasError()) return;
+    	
+    	// A referenced feature must have been uploaded successfully: a failed feature has no values
+    	List<Long> readyFeatureIds = ctx.getFeatureDependencyGraph().takeReadyFeatures(
+    			fId -> ctx.getCalculationProgress().isFeatureDataUploaded(fId) && ctx.getFeatureValues().containsKey(fId));
+    	if (readyFeatureIds.isEmpty()) return;
+    	
+    	log(logger, ctx, "Executing features %s", readyFeatureIds);
+    	List<FeatureDTO> features = ctx.getProtocolData().protocol.getFeatures().stream()
+    			.filter(f -> readyFeatureIds.contains(f.getId()))
+    			.toList();
+    	executeFeatures(ctx, features);
+    }
+    
+    private void executeFeatures(CalculationContext ctx, List<FeatureDTO> features) {
+    	featureExecutorService.prefetchMeasurementData(ctx, features);
+    	ScriptExecutionBatch batch = featureExecutorService.newBatch(ctx);
+    	List<CompletableFuture<Void>> executions = new ArrayList<>();
+    	boolean rejected = false;
+    	for (FeatureDTO feature: features) {
+    		try {
+    			executions.add(executeFeatureAsync(ctx, feature, feature.getSequence(), batch));
+    		} catch (RejectedExecutionException ex) {
+    			ctx.getErrorCollector().addError("Feature calculation rejected: protocol executor is saturated", feature, ex);
+    			ctx.getCalculationProgress().updateProgressFeature(feature.getId(), true);
+    			rejected = true;
+    		}
+    	}
+    	// Submit the batch once the input data of all features has been collected
+    	CompletableFuture.allOf(executions.toArray(CompletableFuture[]::new)).whenComplete((result, ex) -> batch.submit());
+    	// No result event will arrive for the rejected features, so check here whether the calculation can end
+    	if (rejected) handleProgress(ctx, null);
+    }
+    
+    private CompletableFuture<Void> executeFeatureAsync(CalculationContext ctx, FeatureDTO feature, Integer sequence, ScriptExecutionBatch batch) {
+    	return CompletableFuture.runAsync(() -> {
+    		try {
+    			featureExecutorService.executeFeature(ctx, feature, sequence, batch);
+    		} catch (Throwable ex) {
+    			ctx.getErrorCollector().addError("Unexpected error during feature calculation", feature, ex);
+    			ctx.getCalculationProgress().updateProgressFeature(feature.getId(), true);
+    		}
+    	}, protocolExecutor);
     }
     
     public void handleResultSetUpdate(Object resultObject) {
@@ -132,6 +286,8 @@ public class ProtocolExecutorService {
     		rsId = ((ResultDataDTO) resultObject).getResultSetId();
     	} else if (resultObject instanceof ResultFeatureStatDTO) {
     		rsId = ((ResultFeatureStatDTO) resultObject).getResultSetId();
+    	} else if (resultObject instanceof ResultFeatureStatBatchDTO) {
+    		rsId = ((ResultFeatureStatBatchDTO) resultObject).getResultSetId();
     	}
     	if (rsId == null) return;
     	
@@ -140,21 +296,62 @@ public class ProtocolExecutorService {
     	
     	ctx.getCalculationProgress().updateProgress(resultObject);
     	log(logger, ctx, "Calculation progress: %f", ctx.getCalculationProgress().getCompletedFraction());
-    	
+    	handleProgress(ctx, resultObject);
+    }
+    
+    /**
+     * End the calculation, or start the next features, depending on the progress of the calculation.
+     * 
+     * @param resultObject The result that was just uploaded, or null if the progress changed otherwise.
+     */
+    private void handleProgress(CalculationContext ctx, Object resultObject) {
     	if (ctx.getCalculationProgress().isComplete()) {
     		handleCalculationEnded(ctx);
-    	} else if (ctx.getCalculationProgress().isCurrentSequenceComplete()) {
+    	} else if (schedulingMode == SchedulingMode.DEPENDENCY) {
+    		if (ctx.getErrorCollector().hasError()) {
+    			// No more features are launched: wait for the ones in progress, then end the calculation.
+    			boolean launchedFeaturesComplete = ctx.getFeatureDependencyGraph().getLaunchedFeatures().stream()
+    					.allMatch(fId -> ctx.getCalculationProgress().isFeatureComplete(fId));
+    			if (launchedFeaturesComplete) handleCalculationEnded(ctx);
+    		} else if (resultObject instanceof ResultDataDTO) {
+    			triggerReadyFeatures(ctx);
+    		}
+    	} else {
+    		advanceCompletedSequences(ctx);
+    	}
+    }
+    
+    /**
+     * Start the next sequence if the current one is complete. In an incremental calculation, the results of
+     * the next sequence may all be reused (and already be uploaded), so this repeats until a sequence is in progress.
+     */
+    private void advanceCompletedSequences(CalculationContext ctx) {
+    	var progress = ctx.getCalculationProgress();
+    	while (true) {
+    		Integer sequence = progress.getCurrentSequence();
+    		boolean sequenceComplete = awaitFeatureStats ? progress.isCurrentSequenceComplete() : progress.isCurrentSequenceDataComplete();
+    		if (!sequenceComplete) return;
+    		
     		if (ctx.getErrorCollector().hasError()) {
-    			handleCalculationEnded(ctx);
-    		} else {
-    			ctx.getCalculationProgress().incrementCurrentSequence();
-    			triggerSequenceExecution(ctx, ctx.getCalculationProgress().getCurrentSequence());
+    			// Do not end the calculation while feature stats of the previous sequences are still in progress.
+    			if (progress.isCompleteUpToCurrentSequence()) handleCalculationEnded(ctx);
+    			return;
     		}
+    		if (!progress.advanceSequence(sequence)) return;
+    		triggerSequenceExecution(ctx, progress.getCurrentSequence());
     	}
     }
     
     private ResultSetDTO handleCalculationEnded(CalculationContext ctx) {
-    	activeContexts.remove(ctx.getResultSetId());
+    	// Multiple result events may observe the completed calculation at the same time: only the first one ends it
+    	if (activeContexts.remove(ctx.getResultSetId()) == null) return null;
+    	
+    	var cache = ctx.getMeasurementDataCache();
+    	log(logger, ctx, "Measurement data cache: %d hits, %d misses", cache.getHitCount(), cache.getMissCount());
+    	log(logger, ctx, "Script messages: %s", ctx.getScriptMessageStatistics());
+    	measurementCacheHits.addAndGet(cache.getHitCount());
+    	measurementCacheMisses.addAndGet(cache.getMissCount());
+    	cache.clear();
     	
     	ResultSetDTO rs = null;
         if (ctx.getErrorCollector().hasError()) {
@@ -177,6 +374,39 @@ public class ProtocolExecutorService {
         return rs;
     }
     
+    /**
+     * Periodically end the calculations that did not receive any result event for too long
+     * (for example because an event was lost), and keep the memory held by the active calculations bounded.
+     */
+    @Scheduled(fixedDelayString = "${phaedra2.calculation.context.reaper-interval-ms:60000}")
+    public void reapExpiredCalculations() {
+    	for (CalculationContext ctx: activeContexts.findExpired()) {
+    		log(logger, ctx, "Calculation timed out");
+    		ctx.getErrorCollector().addError("Calculation timed out: no progress within the allowed time");
+    		timedOutRuns.incrementAndGet();
+    		handleCalculationEnded(ctx);
+    	}
+    	activeContexts.enforceMemoryLimit();
+    }
+    
+    @Override
+    public String getMetricsName() {
+    	return "plateRuns";
+    }
+    
+    @Override
+    public Map<String, Number> getMetrics() {
+    	Map<String, Number> metrics = new LinkedHashMap<>();
+    	metrics.put("active", activeContexts.size());
+    	metrics.put("timedOut", timedOutRuns.get());
+    	metrics.put("estimatedMemoryBytes", activeContexts.getEstimatedBytes());
+    	metrics.put("measurementCacheEvictions", activeContexts.getCacheEvictionCount());
+    	metrics.put("queued", queuedRuns.get());
+    	metrics.put("rejected", rejectedRuns.get());
+    	metrics.put("measurementCacheHits", measurementCacheHits.get());
+    	metrics.put("measurementCacheMisses", measurementCacheMisses.get());
+    	return metrics;
+    }
 
     private void emitCalculationEvent(CalculationContext ctx, CalculationStatus calculationStatus) {
     	CalculationEvent event = CalculationEvent.builder()
@@ -0,0 +1,51 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.script;
+
+import java.io.IOException;
+
+/**
+ * A store for large script input documents, used to send them to the script engine by reference (claim check)
+ * instead of inline in the Kafka message.
+ * 
+ * Blobs are reference counted: every {@link #put(byte[])} must be followed by a {@link #release(String)}
+ * once the blob is no longer needed. Implementations may store identical content only once.
+ * The script engine must be able to resolve the references returned by the store.
+ * 
+ * An input that has been stored is replaced by a reference document: <pre>{"blobReference": "file:///..."}</pre>
+ */
+public interface BlobStore {
+
+	public static final String REFERENCE_FIELD = "blobReference";
+
+	/**
+	 * Store the given data, and return a reference that the script engine can resolve.
+	 */
+	String put(byte[] data) throws IOException;
+
+	byte[] get(String reference) throws IOException;
+
+	/**
+	 * Release one claim on the referenced blob. The blob is removed when no claims remain.
+	 */
+	void release(String reference) throws IOException;
+
+}
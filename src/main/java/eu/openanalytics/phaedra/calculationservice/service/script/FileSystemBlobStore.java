@@ -0,0 +1,124 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.script;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link BlobStore} that keeps blobs as files in a directory, named after the SHA-256 hash of their content.
+ * 
+ * The references are file URIs, so the directory must be shared with the script engine (e.g. a mounted volume).
+ * Identical inputs are written only once, and the file is deleted when the last claim on it is released.
+ */
+public class FileSystemBlobStore implements BlobStore {
+
+	private final Path directory;
+	private final ConcurrentHashMap<String, Integer> claimCounts = new ConcurrentHashMap<>();
+
+	public FileSystemBlobStore(Path directory) throws IOException {
+		this.directory = Files.createDirectories(directory).toAbsolutePath().normalize();
+	}
+
+	@Override
+	public String put(byte[] data) throws IOException {
+		String key = hash(data);
+		Path path = directory.resolve(key);
+		try {
+			claimCounts.compute(key, (k, count) -> {
+				if (count == null) write(path, data);
+				return (count == null) ? 1 : count + 1;
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return path.toUri().toString();
+	}
+
+	@Override
+	public byte[] get(String reference) throws IOException {
+		return Files.readAllBytes(resolve(reference));
+	}
+
+	@Override
+	public void release(String reference) throws IOException {
+		Path path = resolve(reference);
+		try {
+			claimCounts.computeIfPresent(path.getFileName().toString(), (k, count) -> {
+				if (count > 1) return count - 1;
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return null;
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private Path resolve(String reference) throws IOException {
+		Path path;
+		try {
+			path = Path.of(URI.create(reference)).normalize();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid blob reference: " + reference, e);
+		}
+		if (!directory.equals(path.getParent())) throw new IOException("Blob reference outside of the blob store: " + reference);
+		return path;
+	}
+
+	private void write(Path path, byte[] data) {
+		// A file with the same name has the same content (e.g. left behind by a previous run), so it can be reused
+		if (Files.exists(path)) return;
+		try {
+			// Write to a temporary file first, so that a reader never sees a partial blob
+			Path tempFile = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+			Files.write(tempFile, data);
+			try {
+				Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				Files.deleteIfExists(tempFile);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String hash(byte[] data) {
+		try {
+			StringBuilder hex = new StringBuilder();
+			for (byte b: MessageDigest.getInstance("SHA-256").digest(data)) hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
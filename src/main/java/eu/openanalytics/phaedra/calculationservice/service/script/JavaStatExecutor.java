@@ -0,0 +1,152 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.script;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * An in-process executor for JAVASTAT formulas.
+ * 
+ * A JAVASTAT formula consists of the name of a built-in statistic, e.g. "mean" or "zprime".
+ * The statistic is calculated directly on the feature values, so no script engine round-trip is needed.
+ * NaN values are ignored.
+ * 
+ * The control statistics (zprime, robustzprime, sb, sn) compare the low and high welltypes,
+ * and therefore only produce a plate value.
+ */
+@Service
+public class JavaStatExecutor {
+
+	private static final Set<String> BASIC_STATS = Set.of("count", "min", "max", "mean", "median", "stdev", "cv");
+	private static final Set<String> CONTROL_STATS = Set.of("zprime", "robustzprime", "sb", "sn");
+	
+	// Scales the median absolute deviation to a consistent estimator of the standard deviation
+	private static final double MAD_SCALE = 1.4826;
+
+	public boolean isSupported(String formula) {
+		String statName = getStatName(formula);
+		return BASIC_STATS.contains(statName) || CONTROL_STATS.contains(statName);
+	}
+
+	/**
+	 * Calculate a statistic over all wells of the plate.
+	 */
+	public float calculatePlateValue(String formula, float[] values, List<String> welltypes, String lowWelltype, String highWelltype) {
+		String statName = getStatName(formula);
+		if (CONTROL_STATS.contains(statName)) {
+			double[] lows = select(values, welltypes, lowWelltype);
+			double[] highs = select(values, welltypes, highWelltype);
+			return (float) calculateControlStat(statName, lows, highs);
+		}
+		return (float) calculateBasicStat(statName, select(values, welltypes, null));
+	}
+
+	/**
+	 * Calculate a statistic for each (distinct) welltype of the plate.
+	 */
+	public Map<String, Float> calculateWelltypeValues(String formula, float[] values, List<String> welltypes) {
+		String statName = getStatName(formula);
+		Map<String, Float> welltypeValues = new LinkedHashMap<>();
+		for (String welltype: welltypes.stream().distinct().toList()) {
+			float value = Float.NaN;
+			if (BASIC_STATS.contains(statName)) value = (float) calculateBasicStat(statName, select(values, welltypes, welltype));
+			welltypeValues.put(welltype, value);
+		}
+		return welltypeValues;
+	}
+
+	private static String getStatName(String formula) {
+		return (formula == null) ? "" : formula.trim().toLowerCase();
+	}
+
+	private static double calculateBasicStat(String statName, double[] v) {
+		switch (statName) {
+		case "count": return v.length;
+		case "min": return Arrays.stream(v).min().orElse(Double.NaN);
+		case "max": return Arrays.stream(v).max().orElse(Double.NaN);
+		case "mean": return mean(v);
+		case "median": return median(v);
+		case "stdev": return stdev(v);
+		case "cv": return 100 * stdev(v) / mean(v);
+		default: return Double.NaN;
+		}
+	}
+
+	private static double calculateControlStat(String statName, double[] lows, double[] highs) {
+		switch (statName) {
+		case "zprime": return 1 - 3 * (stdev(lows) + stdev(highs)) / Math.abs(mean(highs) - mean(lows));
+		case "robustzprime": return 1 - 3 * (mad(lows) + mad(highs)) / Math.abs(median(highs) - median(lows));
+		case "sb": return mean(highs) / mean(lows);
+		case "sn": return (mean(highs) - mean(lows)) / stdev(lows);
+		default: return Double.NaN;
+		}
+	}
+
+	/**
+	 * Select the non-NaN values of the wells with the given welltype, or of all wells if welltype is null.
+	 */
+	private static double[] select(float[] values, List<String> welltypes, String welltype) {
+		double[] selected = new double[values.length];
+		int count = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (Float.isNaN(values[i])) continue;
+			if (welltype != null && (i >= welltypes.size() || !welltype.equals(welltypes.get(i)))) continue;
+			selected[count++] = values[i];
+		}
+		return Arrays.copyOf(selected, count);
+	}
+
+	private static double mean(double[] v) {
+		if (v.length == 0) return Double.NaN;
+		double sum = 0;
+		for (double d: v) sum += d;
+		return sum / v.length;
+	}
+
+	private static double stdev(double[] v) {
+		if (v.length < 2) return Double.NaN;
+		double mean = mean(v);
+		double sumSq = 0;
+		for (double d: v) sumSq += (d - mean) * (d - mean);
+		return Math.sqrt(sumSq / (v.length - 1));
+	}
+
+	private static double median(double[] v) {
+		if (v.length == 0) return Double.NaN;
+		double[] sorted = v.clone();
+		Arrays.sort(sorted);
+		int mid = sorted.length / 2;
+		return (sorted.length % 2 == 0) ? (sorted[mid - 1] + sorted[mid]) / 2 : sorted[mid];
+	}
+
+	private static double mad(double[] v) {
+		double median = median(v);
+		double[] deviations = new double[v.length];
+		for (int i = 0; i < v.length; i++) deviations[i] = Math.abs(v[i] - median);
+		return MAD_SCALE * median(deviations);
+	}
+}
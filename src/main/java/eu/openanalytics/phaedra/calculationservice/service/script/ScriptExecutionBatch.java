@@ -0,0 +1,118 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.script;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import eu.openanalytics.phaedra.calculationservice.enumeration.ScriptLanguage;
+import eu.openanalytics.phaedra.calculationservice.util.ScriptMessageStatistics;
+import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
+
+/**
+ * A set of script execution requests that are submitted together.
+ * 
+ * If batching is enabled, the requests are sent to the script engine in a single message when the batch
+ * is submitted, and the shared input data is sent only once for the whole batch.
+ * Otherwise, the shared input data is merged into the input data of each request,
+ * and each request is sent as a separate message as soon as it is added.
+ * 
+ * Shared input data takes precedence over the input data of the individual requests.
+ * 
+ * Obtain a batch via {@link ScriptExecutionService#newBatch(Map, ScriptMessageStatistics)}.
+ */
+public class ScriptExecutionBatch {
+
+	private final ScriptExecutionService scriptExecutionService;
+	private final Map<String, Object> sharedInputData;
+	private final String sharedInput;
+	private final ScriptMessageStatistics statistics;
+	
+	private final List<ScriptExecutionRequest> pendingRequests = new ArrayList<>();
+	private int requestCount;
+	private boolean submitted;
+	
+	ScriptExecutionBatch(ScriptExecutionService scriptExecutionService, Map<String, Object> sharedInputData, String sharedInput, ScriptMessageStatistics statistics) {
+		this.scriptExecutionService = scriptExecutionService;
+		this.sharedInputData = sharedInputData;
+		this.sharedInput = sharedInput;
+		this.statistics = statistics;
+	}
+	
+	/**
+	 * Add a request to this batch.
+	 * If batching is enabled, the request is sent when the batch is submitted, otherwise it is sent immediately.
+	 * 
+	 * @param callback An optional callback, which is added to the request before it is sent.
+	 */
+	public ScriptExecutionRequest add(ScriptLanguage lang, String script, Map<String, Object> inputData, Consumer<ScriptExecutionOutputDTO> callback) {
+		return add(lang, script, inputData, callback, null);
+	}
+	
+	/**
+	 * Add a request to this batch, see {@link #add(ScriptLanguage, String, Map, Consumer)}.
+	 * 
+	 * @param errorHandler An optional handler for an exception thrown by the callback.
+	 */
+	public ScriptExecutionRequest add(ScriptLanguage lang, String script, Map<String, Object> inputData,
+			Consumer<ScriptExecutionOutputDTO> callback, Consumer<Throwable> errorHandler) {
+		ScriptExecutionRequest request = null;
+		if (sharedInput == null) {
+			Map<String, Object> mergedInputData = new HashMap<>(inputData);
+			mergedInputData.putAll(sharedInputData);
+			request = scriptExecutionService.createRequest(lang, script, mergedInputData, null, statistics);
+		} else {
+			request = scriptExecutionService.createRequest(lang, script, inputData, sharedInput, statistics);
+		}
+		if (callback != null) request.addCallback(callback, errorHandler);
+		
+		synchronized (this) {
+			if (submitted) throw new IllegalStateException("Cannot add a request to a batch that has already been submitted");
+			requestCount++;
+			if (sharedInput != null) {
+				pendingRequests.add(request);
+				return request;
+			}
+		}
+		return scriptExecutionService.submit(request);
+	}
+	
+	/**
+	 * Submit all requests of this batch. Afterwards, no more requests can be added.
+	 */
+	public void submit() {
+		List<ScriptExecutionRequest> requestsToSubmit = null;
+		synchronized (this) {
+			if (submitted) return;
+			submitted = true;
+			requestsToSubmit = new ArrayList<>(pendingRequests);
+			pendingRequests.clear();
+		}
+		if (!requestsToSubmit.isEmpty()) scriptExecutionService.submit(requestsToSubmit, sharedInput, statistics);
+	}
+	
+	public synchronized int size() {
+		return requestCount;
+	}
+}
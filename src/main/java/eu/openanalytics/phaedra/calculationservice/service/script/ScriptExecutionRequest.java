@@ -20,52 +20,108 @@
  */
 package eu.openanalytics.phaedra.calculationservice.service.script;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.openanalytics.phaedra.calculationservice.exception.CalculationException;
+import eu.openanalytics.phaedra.calculationservice.util.ScriptMessageStatistics;
 import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionInputDTO;
 import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Data;
+import lombok.Setter;
 
+/**
+ * A script execution that has been (or will be) submitted to the script engine.
+ * 
+ * The output of the execution is available via {@link #getOutputFuture()}, which completes once the final output
+ * (after retries, if any) has been received. The future can be composed with other futures, so that callers
+ * never have to block while waiting for the script engine.
+ */
 @Data
 @Builder
 public class ScriptExecutionRequest {
 
+	private static final Logger logger = LoggerFactory.getLogger(ScriptExecutionRequest.class);
+	
 	private String id;
 	
 	private ScriptExecutionInputDTO input;
-	private volatile ScriptExecutionOutputDTO output;
-	private volatile boolean outputAvailable;
+	// The input shared with the other requests of its batch, if the request was submitted in a batch
+	private String sharedInput;
+	private ScriptMessageStatistics statistics;
+	// The blob holding the input document, if the input was sent by reference
+	private String blobReference;
+	// The key under which the output is memoized, see ScriptOutputMemo
+	private String memoKey;
+	// The memoized output, if the same script was executed earlier with the same input
+	private ScriptExecutionOutputDTO memoizedOutput;
 	
-	private int currentTry;
+	@Builder.Default
+	@Setter(AccessLevel.NONE)
+	private CompletableFuture<ScriptExecutionOutputDTO> outputFuture = new CompletableFuture<>();
+	
+	// Updated by the ScriptExecutionService under the request's tracked entry, but read without locking
+	private volatile int currentTry;
 	private int maxRetryCount;
+	// The time (in epoch millis) at which the current try times out
+	private volatile long deadline;
+	
+	private Executor callbackExecutor;
 	
-	private List<Consumer<ScriptExecutionOutputDTO>> callbacks;
+	/**
+	 * Add a callback that is invoked on the callback executor when the output is available.
+	 * If the output is already available, the callback is scheduled right away.
+	 */
+	public ScriptExecutionRequest addCallback(Consumer<ScriptExecutionOutputDTO> callback) {
+		return addCallback(callback, null);
+	}
 	
-	public synchronized ScriptExecutionRequest addCallback(Consumer<ScriptExecutionOutputDTO> callback) {
-		if (callbacks == null) callbacks = new ArrayList<>();
-		callbacks.add(callback);
+	/**
+	 * Add a callback, see {@link #addCallback(Consumer)}. If the callback executor rejects the callback,
+	 * the callback runs on the thread that completes the output instead, so that it is never lost.
+	 * 
+	 * @param errorHandler An optional handler for an exception thrown by the callback. The exception is logged in any case.
+	 */
+	public ScriptExecutionRequest addCallback(Consumer<ScriptExecutionOutputDTO> callback, Consumer<Throwable> errorHandler) {
+		Executor executor = (callbackExecutor == null) ? ForkJoinPool.commonPool() : callbackExecutor;
+		Executor fallbackExecutor = command -> {
+			try {
+				executor.execute(command);
+			} catch (RejectedExecutionException e) {
+				command.run();
+			}
+		};
+		outputFuture.thenAcceptAsync(callback, fallbackExecutor).exceptionally(ex -> {
+			Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+			logger.error(String.format("Callback of script request %s failed", id), cause);
+			if (errorHandler != null) errorHandler.accept(cause);
+			return null;
+		});
 		return this;
 	}
 	
 	public void signalOutputAvailable(ScriptExecutionOutputDTO output) {
-		synchronized(this) {
-            outputAvailable = true;
-            this.output = output;
-            notifyAll();
-        }
-        if (callbacks != null) {
-        	ForkJoinPool.commonPool().submit(() -> callbacks.forEach(c -> c.accept(output)));
-        }
+		outputFuture.complete(output);
 	}
 	
-	public synchronized ScriptExecutionOutputDTO awaitOutput() throws InterruptedException {
-		while (!this.outputAvailable) {
-            wait();
-        }
-		return output;
+	/**
+	 * Block until the output is available. Prefer composing on {@link #getOutputFuture()} instead.
+	 */
+	public ScriptExecutionOutputDTO awaitOutput() throws InterruptedException {
+		try {
+			return outputFuture.get();
+		} catch (ExecutionException e) {
+			throw new CalculationException("Script execution failed", e.getCause());
+		}
 	}
 }
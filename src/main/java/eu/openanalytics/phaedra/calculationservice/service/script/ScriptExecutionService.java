@@ -20,25 +20,78 @@
  */
 package eu.openanalytics.phaedra.calculationservice.service.script;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import eu.openanalytics.phaedra.calculationservice.config.ExecutorConfig;
+import eu.openanalytics.phaedra.calculationservice.dto.ScriptExecutionBatchDTO;
+import eu.openanalytics.phaedra.calculationservice.dto.ScriptExecutionBatchOutputDTO;
 import eu.openanalytics.phaedra.calculationservice.enumeration.ScriptLanguage;
 import eu.openanalytics.phaedra.calculationservice.exception.CalculationException;
 import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.util.BinaryInputCodec;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationExecutor;
+import eu.openanalytics.phaedra.calculationservice.util.MetricsProvider;
+import eu.openanalytics.phaedra.calculationservice.util.ScriptMessageStatistics;
+import eu.openanalytics.phaedra.scriptengine.dto.ResponseStatusCode;
 import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionInputDTO;
 import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
 
+/**
+ * Submits scripts to the script engine, and dispatches the script outputs to their requests.
+ * 
+ * Requests that fail with a retryable status are resubmitted, up to {@link ScriptExecutionRequest#getMaxRetryCount()} times.
+ * 
+ * Requests can be submitted one by one, or in a {@link ScriptExecutionBatch}. Sending batches as a single message
+ * requires a script engine that supports batch messages, therefore it must be enabled via
+ * phaedra2.calculation.script-batching.enabled. Batches larger than phaedra2.calculation.script-batching.max-bytes
+ * are split up into multiple messages.
+ * 
+ * Every try of a request has a deadline (phaedra2.calculation.script-execution.timeout-seconds). Requests whose
+ * response does not arrive in time are retried, or completed with a timeout error when no retries are left.
+ * The number of requests in flight is limited (phaedra2.calculation.script-execution.max-in-flight): a new request
+ * that finds no free slot is queued without blocking the caller, and is sent as soon as another request completes.
+ * The deadline of a queued request only starts when it is sent.
+ * 
+ * For the languages listed in phaedra2.calculation.script-input.binary-languages, the numeric arrays in the input
+ * documents are sent in a compact binary encoding, see {@link BinaryInputCodec}. Shared batch inputs are always plain JSON,
+ * since a batch may contain requests for different languages.
+ * 
+ * If a {@link BlobStore} is configured, input documents larger than phaedra2.calculation.claim-check.threshold-bytes
+ * are written to the store once, and only a reference is sent to the script engine (claim check). Retries resend
+ * the reference, and the blob is released when the request completes. Shared batch inputs are always sent inline.
+ * 
+ * If memoization is enabled (see {@link ScriptOutputMemo}), a request for a script that was executed earlier with
+ * the same input is completed immediately with the remembered output, without being sent to the script engine.
+ */
 @Service
-public class ScriptExecutionService {
+public class ScriptExecutionService implements MetricsProvider {
 
 	private static final int DEFAULT_RETRIES = 3;
+	private static final int DEFAULT_MAX_IN_FLIGHT = 10000;
 	
 	@Autowired
 	private KafkaProducerService kafkaProducer;
@@ -46,53 +99,371 @@ public class ScriptExecutionService {
 	@Autowired
 	private ObjectMapper objectMapper;
 	
+	@Autowired
+	@Qualifier(ExecutorConfig.CALLBACK_EXECUTOR)
+	private CalculationExecutor callbackExecutor;
+	
+	@Autowired(required = false)
+	private BlobStore blobStore;
+	
+	@Autowired(required = false)
+	private ScriptOutputMemo outputMemo;
+	
+	@Value("${phaedra2.calculation.script-batching.enabled:false}")
+	private boolean batchingEnabled;
+	
+	@Value("${phaedra2.calculation.script-batching.max-bytes:900000}")
+	private long maxBatchBytes;
+	
+	@Value("${phaedra2.calculation.script-execution.timeout-seconds:600}")
+	private long requestTimeoutSeconds = 600;
+	
+	@Value("${phaedra2.calculation.script-input.binary-languages:}")
+	private Set<ScriptLanguage> binaryInputLanguages = Set.of();
+	
+	@Value("${phaedra2.calculation.claim-check.threshold-bytes:1000000}")
+	private long claimCheckThresholdBytes = 1000000;
+	
+	private volatile ObjectMapper binaryObjectMapper;
+	
+	private Semaphore inFlightPermits = new Semaphore(DEFAULT_MAX_IN_FLIGHT);
+	
 	private ConcurrentHashMap<String, ScriptExecutionRequest> trackedExecutions = new ConcurrentHashMap<>();
 	
+	// New requests that are waiting for an in-flight slot, in submission order
+	private final Queue<ScriptExecutionRequest> waitingRequests = new ConcurrentLinkedQueue<>();
+	
+	private final ScriptMessageStatistics statistics = new ScriptMessageStatistics();
+	private final AtomicLong timedOutCount = new AtomicLong();
+	private final AtomicLong timeoutRetryCount = new AtomicLong();
+	private final AtomicLong throttledCount = new AtomicLong();
+	private final AtomicLong claimCheckCount = new AtomicLong();
+	private final AtomicLong claimCheckBytes = new AtomicLong();
+	private final AtomicLong memoHitCount = new AtomicLong();
+	
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	
+	@Value("${phaedra2.calculation.script-execution.max-in-flight:" + DEFAULT_MAX_IN_FLIGHT + "}")
+	void setMaxInFlight(int maxInFlight) {
+		this.inFlightPermits = new Semaphore(maxInFlight);
+	}
+	
 	public ScriptExecutionRequest submit(ScriptLanguage lang, String script, Object inputData) {
-    	String inputDocument = null;
-    	try {
-    		inputDocument = objectMapper.writeValueAsString(inputData);
-        } catch (JsonProcessingException e) {
-        	throw new CalculationException("Failed to serialize input data", e);
-        }
+		return submit(createRequest(lang, script, inputData, null, null));
+	}
+	
+	/**
+	 * Create a new batch of requests.
+	 * 
+	 * @param sharedInputData Input data that is common to all requests of the batch.
+	 * @param statistics Optional statistics to record the batch's messages in, in addition to the service-wide statistics.
+	 */
+	public ScriptExecutionBatch newBatch(Map<String, Object> sharedInputData, ScriptMessageStatistics statistics) {
+		String sharedInput = batchingEnabled ? serializeInput(sharedInputData) : null;
+		return new ScriptExecutionBatch(this, sharedInputData, sharedInput, statistics);
+	}
+	
+	ScriptExecutionRequest createRequest(ScriptLanguage lang, String script, Object inputData, String sharedInput, ScriptMessageStatistics statistics) {
+    	String serializedInput = binaryInputLanguages.contains(lang) ? serializeBinaryInput(inputData) : serializeInput(inputData);
+    	// The memo key is computed on the actual input, not on the blob reference that may replace it
+    	String memoKey = (outputMemo == null) ? null : outputMemo.createKey(lang, script, serializedInput, sharedInput);
+    	ScriptExecutionOutputDTO memoizedOutput = (outputMemo == null) ? null : outputMemo.get(memoKey);
+    	String blobReference = (memoizedOutput == null) ? storeLargeInput(serializedInput) : null;
     	
     	ScriptExecutionInputDTO input = ScriptExecutionInputDTO.builder()
     			.language(lang.name())
     			.script(script)
-    			.input(inputDocument)
+    			.input(blobReference == null ? serializedInput : serializeInput(Map.of(BlobStore.REFERENCE_FIELD, blobReference)))
     			.build();
     	
-    	ScriptExecutionRequest request = ScriptExecutionRequest.builder()
+    	return ScriptExecutionRequest.builder()
     			.input(input)
+    			.blobReference(blobReference)
+    			.memoKey(memoKey)
+    			.memoizedOutput(memoizedOutput)
+    			.sharedInput(sharedInput)
+    			.statistics(statistics)
     			.maxRetryCount(DEFAULT_RETRIES)
+    			.callbackExecutor(callbackExecutor)
     			.build();
-    	
-    	return submit(request);
 	}
 	
 	public ScriptExecutionRequest submit(ScriptExecutionRequest request) {
-		if (request.getId() == null) {
-			request.setId(UUID.randomUUID().toString());
-			request.getInput().setId(request.getId());
-			trackedExecutions.put(request.getId(), request);
+		if (completeFromMemo(request)) return request;
+		if (request.getSharedInput() != null) {
+			submit(List.of(request), request.getSharedInput(), request.getStatistics());
+			return request;
 		}
-		request.setCurrentTry(request.getCurrentTry() + 1);
+		
+		if (!prepareSubmit(request)) return request;
 		kafkaProducer.sendScriptExecutionRequest(request.getInput());
+		long size = getSize(request);
+		recordMessage(request.getStatistics(), 1, size, size);
 		return request;
 	}
 	
+	void submit(List<ScriptExecutionRequest> requests, String sharedInput, ScriptMessageStatistics batchStatistics) {
+		if (sharedInput == null) {
+			requests.forEach(this::submit);
+			return;
+		}
+		
+		requests = requests.stream().filter(r -> !completeFromMemo(r)).toList();
+		if (requests.isEmpty()) return;
+		
+		List<ScriptExecutionRequest> chunk = new ArrayList<>();
+		long chunkSize = sharedInput.length();
+		for (ScriptExecutionRequest request: requests) {
+			long size = getSize(request);
+			if (!chunk.isEmpty() && chunkSize + size > maxBatchBytes) {
+				sendBatch(chunk, sharedInput, batchStatistics);
+				chunk = new ArrayList<>();
+				chunkSize = sharedInput.length();
+			}
+			chunk.add(request);
+			chunkSize += size;
+		}
+		if (!chunk.isEmpty()) sendBatch(chunk, sharedInput, batchStatistics);
+	}
+	
+	private void sendBatch(List<ScriptExecutionRequest> requests, String sharedInput, ScriptMessageStatistics batchStatistics) {
+		// The requests that find no in-flight slot are sent later, on their own
+		requests = requests.stream().filter(this::prepareSubmit).toList();
+		if (requests.isEmpty()) return;
+		
+		long batchSize = sharedInput.length() + requests.stream().mapToLong(ScriptExecutionService::getSize).sum();
+		ScriptExecutionBatchDTO batch = ScriptExecutionBatchDTO.builder()
+				.id(UUID.randomUUID().toString())
+				.sharedInput(sharedInput)
+				.inputs(requests.stream().map(ScriptExecutionRequest::getInput).toList())
+				.build();
+		kafkaProducer.sendScriptExecutionBatch(batch);
+		
+		long unbatchedSize = requests.stream().mapToLong(r -> getSize(r) + sharedInput.length()).sum();
+		recordMessage(batchStatistics, requests.size(), batchSize, unbatchedSize);
+	}
+	
+	/**
+	 * Start tracking a new request, if an in-flight slot is available. Otherwise, the request is queued
+	 * until a slot is released, see {@link #sendWaitingRequests()}.
+	 * 
+	 * @return True if the request can be sent now.
+	 */
+	private boolean prepareSubmit(ScriptExecutionRequest request) {
+		// Retries are started via startNextTry, before they are resubmitted, and keep their slot
+		if (request.getId() != null) return true;
+		if (!inFlightPermits.tryAcquire()) {
+			throttledCount.incrementAndGet();
+			waitingRequests.add(request);
+			// A slot may have been released before the request was queued
+			sendWaitingRequests();
+			return false;
+		}
+		startTracking(request);
+		return true;
+	}
+	
+	/**
+	 * Send queued requests for as long as in-flight slots are available.
+	 */
+	private void sendWaitingRequests() {
+		while (!waitingRequests.isEmpty() && inFlightPermits.tryAcquire()) {
+			ScriptExecutionRequest request = waitingRequests.poll();
+			if (request == null) {
+				// Another thread took the last request, give the slot back and check the queue again
+				inFlightPermits.release();
+				continue;
+			}
+			startTracking(request);
+			submit(request);
+		}
+	}
+	
+	private void startTracking(ScriptExecutionRequest request) {
+		request.setId(UUID.randomUUID().toString());
+		request.getInput().setId(request.getId());
+		// The first try must have its deadline before the sweeper can see the request
+		request.setDeadline(nextDeadline());
+		request.setCurrentTry(1);
+		trackedExecutions.put(request.getId(), request);
+	}
+	
+	/**
+	 * Start the next try of a tracked request: a response handler and the sweeper may both attempt to retry
+	 * the same try, but only one of them succeeds. This is done under the request's entry in the tracked map,
+	 * so that a request cannot be retried after it has been completed either.
+	 * 
+	 * @param observedTry The try that the caller wants to retry.
+	 * @return True if the caller started the next try, and should resubmit the request.
+	 */
+	private boolean startNextTry(ScriptExecutionRequest request, int observedTry) {
+		boolean[] started = { false };
+		trackedExecutions.computeIfPresent(request.getId(), (id, tracked) -> {
+			if (tracked == request && tracked.getCurrentTry() == observedTry) {
+				// Set the deadline first: whoever sees the new try, also sees its deadline
+				tracked.setDeadline(nextDeadline());
+				tracked.setCurrentTry(observedTry + 1);
+				started[0] = true;
+			}
+			return tracked;
+		});
+		return started[0];
+	}
+	
+	private long nextDeadline() {
+		return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(requestTimeoutSeconds);
+	}
+	
+	/**
+	 * Write an input document that is too large to send inline to the blob store.
+	 * 
+	 * @return The blob reference, or null if the input should be sent inline.
+	 */
+	private String storeLargeInput(String serializedInput) {
+		if (blobStore == null || serializedInput.length() <= claimCheckThresholdBytes) return null;
+		byte[] data = serializedInput.getBytes(StandardCharsets.UTF_8);
+		try {
+			String reference = blobStore.put(data);
+			claimCheckCount.incrementAndGet();
+			claimCheckBytes.addAndGet(data.length);
+			return reference;
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to store script input of %d bytes, sending it inline", data.length), e);
+			return null;
+		}
+	}
+	
+	private void releaseBlob(ScriptExecutionRequest request) {
+		if (request.getBlobReference() == null) return;
+		try {
+			blobStore.release(request.getBlobReference());
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to release script input blob %s", request.getBlobReference()), e);
+		}
+	}
+	
+	private void complete(ScriptExecutionRequest request, ScriptExecutionOutputDTO output) {
+		// A response may race with a timeout: only the first one completes the request
+		if (!trackedExecutions.remove(request.getId(), request)) return;
+		inFlightPermits.release();
+		sendWaitingRequests();
+		releaseBlob(request);
+		if (outputMemo != null) outputMemo.put(request.getMemoKey(), output);
+		request.signalOutputAvailable(output);
+	}
+	
+	/**
+	 * Complete a request that has not been sent yet with its memoized output, if it has one.
+	 */
+	private boolean completeFromMemo(ScriptExecutionRequest request) {
+		ScriptExecutionOutputDTO memoizedOutput = request.getMemoizedOutput();
+		if (memoizedOutput == null || request.getId() != null) return false;
+		
+		request.setId(UUID.randomUUID().toString());
+		request.getInput().setId(request.getId());
+		memoHitCount.incrementAndGet();
+		request.signalOutputAvailable(ScriptExecutionOutputDTO.builder()
+				.inputId(request.getId())
+				.output(memoizedOutput.getOutput())
+				.statusCode(memoizedOutput.getStatusCode())
+				.statusMessage(memoizedOutput.getStatusMessage())
+				.exitCode(memoizedOutput.getExitCode())
+				.build());
+		return true;
+	}
+	
 	public void handleScriptExecutionUpdate(ScriptExecutionOutputDTO output) {
 		ScriptExecutionRequest request = trackedExecutions.get(output.getInputId());
 		if (request == null) return;
 
-		if (output.getStatusCode().canBeRetried() && request.getCurrentTry() <= request.getMaxRetryCount()) {
-			// Failure but a retry can be attempted
-			submit(request);
+		int currentTry = request.getCurrentTry();
+		if (output.getStatusCode().canBeRetried() && currentTry <= request.getMaxRetryCount()) {
+			// Failure but a retry can be attempted, unless this try has been retried already
+			if (startNextTry(request, currentTry)) submit(request);
 		} else {
 			// Success or non-retryable failure
-			request.signalOutputAvailable(output);
-			trackedExecutions.remove(request.getId());
+			complete(request, output);
 		}
 	}
 	
+	/**
+	 * Retry the requests whose response did not arrive before their deadline,
+	 * or complete them with an error if they have no retries left.
+	 */
+	@Scheduled(fixedDelayString = "${phaedra2.calculation.script-execution.sweep-interval-ms:10000}")
+	public void sweepExpiredRequests() {
+		long now = System.currentTimeMillis();
+		for (ScriptExecutionRequest request: trackedExecutions.values()) {
+			// Read the try before the deadline, see startNextTry
+			int currentTry = request.getCurrentTry();
+			if (request.getDeadline() > now) continue;
+			if (currentTry <= request.getMaxRetryCount()) {
+				if (!startNextTry(request, currentTry)) continue;
+				logger.warn(String.format("Script request %s timed out (try %d), retrying", request.getId(), currentTry));
+				timeoutRetryCount.incrementAndGet();
+				submit(request);
+			} else {
+				logger.warn(String.format("Script request %s timed out (try %d), giving up", request.getId(), currentTry));
+				timedOutCount.incrementAndGet();
+				complete(request, ScriptExecutionOutputDTO.builder()
+						.inputId(request.getId())
+						.statusCode(ResponseStatusCode.WORKER_INTERNAL_ERROR)
+						.statusMessage(String.format("Script execution timed out after %d tries", currentTry))
+						.exitCode(-1)
+						.build());
+			}
+		}
+	}
+	
+	public void handleScriptExecutionBatchUpdate(ScriptExecutionBatchOutputDTO batchOutput) {
+		if (batchOutput.getOutputs() == null) return;
+		batchOutput.getOutputs().forEach(this::handleScriptExecutionUpdate);
+	}
+	
+	@Override
+	public String getMetricsName() {
+		return "scriptExecution";
+	}
+	
+	@Override
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = statistics.toMap();
+		metrics.put("tracked", trackedExecutions.size());
+		metrics.put("timedOut", timedOutCount.get());
+		metrics.put("timeoutRetries", timeoutRetryCount.get());
+		metrics.put("throttled", throttledCount.get());
+		metrics.put("waiting", waitingRequests.size());
+		metrics.put("availableInFlightSlots", inFlightPermits.availablePermits());
+		metrics.put("claimChecks", claimCheckCount.get());
+		metrics.put("claimCheckBytes", claimCheckBytes.get());
+		metrics.put("memoHits", memoHitCount.get());
+		return metrics;
+	}
+	
+	private String serializeInput(Object inputData) {
+    	try {
+    		return objectMapper.writeValueAsString(inputData);
+        } catch (JsonProcessingException e) {
+        	throw new CalculationException("Failed to serialize input data", e);
+        }
+	}
+	
+	private String serializeBinaryInput(Object inputData) {
+		if (binaryObjectMapper == null) binaryObjectMapper = BinaryInputCodec.createObjectMapper(objectMapper);
+		try {
+			return binaryObjectMapper.writeValueAsString(inputData);
+		} catch (JsonProcessingException e) {
+			throw new CalculationException("Failed to serialize input data", e);
+		}
+	}
+	
+	private void recordMessage(ScriptMessageStatistics requestStatistics, int requestCount, long size, long unbatchedSize) {
+		statistics.recordMessage(requestCount, size, unbatchedSize);
+		if (requestStatistics != null) requestStatistics.recordMessage(requestCount, size, unbatchedSize);
+	}
+	
+	private static long getSize(ScriptExecutionRequest request) {
+		ScriptExecutionInputDTO input = request.getInput();
+		return (input.getScript() == null ? 0 : input.getScript().length()) + (input.getInput() == null ? 0 : input.getInput().length());
+	}
 }
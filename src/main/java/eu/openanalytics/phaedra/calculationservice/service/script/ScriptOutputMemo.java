@@ -0,0 +1,174 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.script;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import eu.openanalytics.phaedra.calculationservice.enumeration.ScriptLanguage;
+import eu.openanalytics.phaedra.calculationservice.repository.ScriptOutputMemoRepository;
+import eu.openanalytics.phaedra.calculationservice.util.ExpiringLruCache;
+import eu.openanalytics.phaedra.calculationservice.util.MetricsProvider;
+import eu.openanalytics.phaedra.scriptengine.dto.ResponseStatusCode;
+import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
+
+/**
+ * Remembers the outputs of successful script executions, keyed by the SHA-256 hash of the language,
+ * the script and the serialized input. A script that is executed again with the same input is not sent
+ * to the script engine, but completed with the remembered output.
+ * 
+ * This assumes that scripts are deterministic functions of their input, therefore it must be enabled
+ * via phaedra2.calculation.script-memo.enabled. Outputs are kept in memory (script-memo.max-size entries,
+ * for script-memo.ttl-seconds). With script-memo.persistent, they are also stored in the database,
+ * so that they survive restarts and are shared between instances.
+ */
+@Service
+public class ScriptOutputMemo implements MetricsProvider {
+
+	private final ScriptOutputMemoRepository repository;
+	private final boolean enabled;
+	private final boolean persistent;
+	private final long ttlSeconds;
+	private final ExpiringLruCache<String, ScriptExecutionOutputDTO> cache;
+
+	private final AtomicLong storeCount = new AtomicLong();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public ScriptOutputMemo(ScriptOutputMemoRepository repository,
+			@Value("${phaedra2.calculation.script-memo.enabled:false}") boolean enabled,
+			@Value("${phaedra2.calculation.script-memo.persistent:false}") boolean persistent,
+			@Value("${phaedra2.calculation.script-memo.max-size:10000}") int maxSize,
+			@Value("${phaedra2.calculation.script-memo.ttl-seconds:86400}") long ttlSeconds) {
+		this.repository = repository;
+		this.enabled = enabled;
+		this.persistent = persistent;
+		this.ttlSeconds = ttlSeconds;
+		this.cache = new ExpiringLruCache<>(maxSize, TimeUnit.SECONDS.toMillis(ttlSeconds));
+	}
+
+	/**
+	 * Compute the memo key of a script execution.
+	 * 
+	 * @param sharedInput The shared batch input, if any, since it is part of the script's input.
+	 * @return The key, or null if memoization is disabled.
+	 */
+	public String createKey(ScriptLanguage lang, String script, String input, String sharedInput) {
+		if (!enabled) return null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String part: new String[] { lang.name(), script, input, sharedInput }) {
+				// Prefix each part with its length (-1 for null), so that different splits cannot produce the same key
+				byte[] bytes = (part == null) ? new byte[0] : part.getBytes(StandardCharsets.UTF_8);
+				digest.update(ByteBuffer.allocate(4).putInt(part == null ? -1 : bytes.length).array());
+				digest.update(bytes);
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b: digest.digest()) hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Look up the remembered output for the given key.
+	 * 
+	 * @return The output (without input id), or null if there is none.
+	 */
+	public ScriptExecutionOutputDTO get(String key) {
+		if (key == null) return null;
+		return cache.get(key, () -> persistent ? loadEntry(key) : null);
+	}
+
+	/**
+	 * Remember the output of a script execution. Outputs of failed executions are ignored.
+	 */
+	public void put(String key, ScriptExecutionOutputDTO output) {
+		if (key == null || output.getStatusCode() != ResponseStatusCode.SUCCESS || output.getOutput() == null) return;
+		cache.put(key, createOutput(output.getOutput(), output.getStatusMessage()));
+		storeCount.incrementAndGet();
+		if (!persistent) return;
+		try {
+			repository.insertEntry(key, output.getOutput(), LocalDateTime.now());
+		} catch (RuntimeException e) {
+			logger.warn("Failed to store script output memo " + key, e);
+		}
+	}
+
+	@Scheduled(fixedDelayString = "${phaedra2.calculation.script-memo.purge-interval-ms:3600000}")
+	public void purgeExpiredEntries() {
+		if (!persistent) return;
+		try {
+			repository.deleteExpiredEntries(LocalDateTime.now().minusSeconds(ttlSeconds));
+		} catch (RuntimeException e) {
+			logger.warn("Failed to purge expired script output memos", e);
+		}
+	}
+
+	private ScriptExecutionOutputDTO loadEntry(String key) {
+		try {
+			return repository.findValidEntry(key, LocalDateTime.now().minusSeconds(ttlSeconds))
+					.map(entry -> createOutput(entry.getOutput(), "Ok"))
+					.orElse(null);
+		} catch (RuntimeException e) {
+			logger.warn("Failed to load script output memo " + key, e);
+			return null;
+		}
+	}
+
+	private static ScriptExecutionOutputDTO createOutput(String output, String statusMessage) {
+		return ScriptExecutionOutputDTO.builder()
+				.output(output)
+				.statusCode(ResponseStatusCode.SUCCESS)
+				.statusMessage(statusMessage)
+				.exitCode(0)
+				.build();
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "scriptOutputMemo";
+	}
+
+	@Override
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<>();
+		metrics.put("size", cache.size());
+		metrics.put("hits", cache.getHits());
+		metrics.put("misses", cache.getMisses());
+		metrics.put("stored", storeCount.get());
+		return metrics;
+	}
+}
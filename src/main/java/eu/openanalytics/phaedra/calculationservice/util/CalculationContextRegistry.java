@@ -0,0 +1,159 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
+
+/**
+ * The registry of active calculations, keyed by result set id.
+ * 
+ * Each calculation has a deadline: it expires when no result event was received for it during the idle timeout,
+ * or when it runs longer than the maximum duration. Expired calculations must be ended by the owner of the registry,
+ * so that a calculation whose last event is lost does not stay in memory forever.
+ * 
+ * The memory held by the registered calculations is estimated as well. When it exceeds the limit,
+ * the measurement data caches of the least recently active calculations are cleared (their data will be
+ * fetched again if it is needed).
+ */
+public class CalculationContextRegistry {
+
+	private static final long WELL_SIZE_ESTIMATE = 256;
+
+	private final long idleTimeoutMillis;
+	private final long maxDurationMillis;
+	private final long maxMemoryBytes;
+
+	private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong estimatedBytes = new AtomicLong();
+	private final AtomicLong cacheEvictionCount = new AtomicLong();
+
+	private static class Entry {
+		private final CalculationContext ctx;
+		private final long registeredAt;
+		private volatile long lastActivity;
+
+		private Entry(CalculationContext ctx, long now) {
+			this.ctx = ctx;
+			this.registeredAt = now;
+			this.lastActivity = now;
+		}
+	}
+
+	public CalculationContextRegistry(long idleTimeoutMillis, long maxDurationMillis, long maxMemoryBytes) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.maxDurationMillis = maxDurationMillis;
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+
+	public void register(CalculationContext ctx) {
+		entries.put(ctx.getResultSetId(), new Entry(ctx, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Get an active calculation, and mark it as active now.
+	 * 
+	 * @return the calculation, or null if there is no active calculation for this result set
+	 */
+	public CalculationContext get(long resultSetId) {
+		Entry entry = entries.get(resultSetId);
+		if (entry == null) return null;
+		entry.lastActivity = System.currentTimeMillis();
+		return entry.ctx;
+	}
+
+	/**
+	 * Remove an active calculation.
+	 * 
+	 * @return the calculation, or null if it was not (or no longer) registered
+	 */
+	public CalculationContext remove(long resultSetId) {
+		Entry entry = entries.remove(resultSetId);
+		return (entry == null) ? null : entry.ctx;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Find the calculations that have been idle for too long, or that are running for too long.
+	 * They are not removed: that is up to the caller.
+	 */
+	public List<CalculationContext> findExpired() {
+		long now = System.currentTimeMillis();
+		List<CalculationContext> expired = new ArrayList<>();
+		for (Entry entry: entries.values()) {
+			if (now - entry.lastActivity > idleTimeoutMillis || now - entry.registeredAt > maxDurationMillis) {
+				expired.add(entry.ctx);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Estimate the memory held by the active calculations, and clear measurement data caches
+	 * (least recently active calculations first) until the estimate is below the limit.
+	 * 
+	 * @return the estimated memory in bytes, after clearing caches
+	 */
+	public long enforceMemoryLimit() {
+		List<Entry> activeEntries = new ArrayList<>(entries.values());
+		long total = 0;
+		for (Entry entry: activeEntries) total += estimateSize(entry.ctx);
+
+		if (total > maxMemoryBytes) {
+			activeEntries.sort(Comparator.comparingLong(e -> e.lastActivity));
+			for (Entry entry: activeEntries) {
+				if (total <= maxMemoryBytes) break;
+				long cacheSize = entry.ctx.getMeasurementDataCache().estimateSize();
+				if (cacheSize == 0) continue;
+				entry.ctx.getMeasurementDataCache().clear();
+				cacheEvictionCount.incrementAndGet();
+				total -= cacheSize;
+			}
+		}
+		estimatedBytes.set(total);
+		return total;
+	}
+
+	public long getEstimatedBytes() {
+		return estimatedBytes.get();
+	}
+
+	public long getCacheEvictionCount() {
+		return cacheEvictionCount.get();
+	}
+
+	private static long estimateSize(CalculationContext ctx) {
+		long size = WELL_SIZE_ESTIMATE * ctx.getWells().size();
+		for (float[] values: ctx.getFeatureValues().values()) {
+			if (values != null) size += 4L * values.length;
+		}
+		return size + ctx.getMeasurementDataCache().estimateSize();
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.openanalytics.phaedra.calculationservice.enumeration.ExecutionMode;
+import eu.openanalytics.phaedra.calculationservice.enumeration.RejectionPolicy;
+
+/**
+ * A bounded executor used by the calculation services.
+ *
+ * In {@link ExecutionMode#PLATFORM} mode, the number of worker threads and the depth of the task queue are fixed.
+ * In {@link ExecutionMode#VIRTUAL} mode, every task gets its own virtual thread, and the number of tasks in flight
+ * is limited to the same total capacity (pool size + queue size).
+ *
+ * When the capacity is exhausted, the configured {@link RejectionPolicy} decides whether
+ * the task is rejected, or executed on the submitting thread (backpressure).
+ */
+public class CalculationExecutor implements Executor, MetricsProvider {
+
+	private final String name;
+	private final ExecutionMode mode;
+	private final RejectionPolicy rejectionPolicy;
+
+	private final ThreadPoolExecutor platformExecutor;
+	private final ExecutorService virtualExecutor;
+	private final int capacity;
+
+	private final AtomicInteger inFlightCount = new AtomicInteger();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong callerRunsCount = new AtomicLong();
+
+	private static final Logger logger = LoggerFactory.getLogger(CalculationExecutor.class);
+
+	public CalculationExecutor(String name, ExecutionMode mode, int poolSize, int queueSize, RejectionPolicy rejectionPolicy) {
+		this.name = name;
+		this.rejectionPolicy = rejectionPolicy;
+		this.capacity = poolSize + queueSize;
+
+		ExecutorService virtualExecutor = (mode == ExecutionMode.VIRTUAL) ? createVirtualThreadExecutor() : null;
+		if (mode == ExecutionMode.VIRTUAL && virtualExecutor == null) {
+			logger.warn(String.format("Virtual threads are not supported by this runtime (Java %s), executor %s falls back to platform threads", Runtime.version().feature(), name));
+			mode = ExecutionMode.PLATFORM;
+		}
+		this.mode = mode;
+		this.virtualExecutor = virtualExecutor;
+
+		if (mode == ExecutionMode.PLATFORM) {
+			this.platformExecutor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(queueSize), new NamedThreadFactory(name), createRejectionHandler());
+			this.platformExecutor.allowCoreThreadTimeOut(true);
+		} else {
+			this.platformExecutor = null;
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (mode == ExecutionMode.PLATFORM) {
+			platformExecutor.execute(task);
+		} else if (inFlightCount.incrementAndGet() > capacity) {
+			inFlightCount.decrementAndGet();
+			reject(task);
+		} else {
+			try {
+				virtualExecutor.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						inFlightCount.decrementAndGet();
+						completedCount.incrementAndGet();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				inFlightCount.decrementAndGet();
+				rejectedCount.incrementAndGet();
+				throw e;
+			}
+		}
+	}
+
+	public ExecutionMode getMode() {
+		return mode;
+	}
+
+	public void shutdown() {
+		if (platformExecutor != null) platformExecutor.shutdown();
+		if (virtualExecutor != null) virtualExecutor.shutdown();
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "executor." + name;
+	}
+
+	@Override
+	public Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<>();
+		if (mode == ExecutionMode.PLATFORM) {
+			metrics.put("poolSize", platformExecutor.getPoolSize());
+			metrics.put("active", platformExecutor.getActiveCount());
+			metrics.put("queued", platformExecutor.getQueue().size());
+			metrics.put("completed", platformExecutor.getCompletedTaskCount());
+		} else {
+			metrics.put("active", inFlightCount.get());
+			metrics.put("queued", 0);
+			metrics.put("completed", completedCount.get());
+		}
+		metrics.put("capacity", capacity);
+		metrics.put("rejected", rejectedCount.get());
+		metrics.put("callerRuns", callerRunsCount.get());
+		return metrics;
+	}
+
+	private RejectedExecutionHandler createRejectionHandler() {
+		return (task, executor) -> {
+			if (executor.isShutdown()) {
+				rejectedCount.incrementAndGet();
+				throw new RejectedExecutionException(String.format("Executor %s has been shut down", name));
+			}
+			reject(task);
+		};
+	}
+
+	private void reject(Runnable task) {
+		if (rejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+			callerRunsCount.incrementAndGet();
+			task.run();
+		} else {
+			rejectedCount.incrementAndGet();
+			throw new RejectedExecutionException(String.format("Executor %s is saturated (capacity %d)", name, capacity));
+		}
+	}
+
+	/**
+	 * Virtual threads are only available from Java 21 onwards, while this service is also built for older runtimes.
+	 * Therefore the virtual thread executor is looked up reflectively.
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, String.format("%s-%d", prefix, threadCount.incrementAndGet()));
+		}
+	}
+}
@@ -21,9 +21,15 @@
 package eu.openanalytics.phaedra.calculationservice.util;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import eu.openanalytics.phaedra.calculationservice.dto.ResultFeatureStatBatchDTO;
 import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
 import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
 import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
@@ -31,100 +37,220 @@ import eu.openanalytics.phaedra.protocolservice.dto.FeatureStatDTO;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
 import eu.openanalytics.phaedra.resultdataservice.dto.ResultFeatureStatDTO;
 
+/**
+ * Tracks which results of a calculation have been uploaded.
+ * 
+ * Every expected result (the data of a feature, a plate stat, or a stat value for one welltype) gets a fixed slot,
+ * which is assigned up front. The slots of a feature are contiguous, starting with the slot of its data.
+ * Updates flip a bit and adjust the counters of the remaining results (in total, per feature and per sequence),
+ * so that every update and every completion check takes constant time.
+ * 
+ * This class is lock-free: the bits and counters are atomic, and the transition to the next sequence
+ * is a compare-and-set, so that exactly one of the threads that observe a completed sequence advances it.
+ */
 public class CalculationProgress {
 
-	private CalculationContext ctx;
-	private Integer currentSequence;
-	
-	private Map<Long, Boolean> featureDataUploaded;
-	private Map<Long, Map<String, Boolean>> featureStatsUploaded;
+	private final List<Integer> sequences;
+	private final Map<Integer, Integer> sequenceIndexes = new HashMap<>();
+	private final Map<Long, Integer> featureIndexes = new HashMap<>();
+	private final Map<Long, Integer> statSlots = new HashMap<>();
+	private final Set<Long> welltypeStatIds = new HashSet<>();
+	private final Map<String, Integer> welltypeIndexes = new HashMap<>();
+
+	// Per feature index: the first slot (= the feature data) and the number of slots
+	private final int[] featureSlots;
+	private final int[] featureSlotCounts;
+	private final int[] featureSequenceIndexes;
+
+	private final AtomicLongArray uploaded;
+	private final int slotCount;
+	private final AtomicInteger remainingCount;
+	private final AtomicIntegerArray featureRemaining;
+	private final AtomicIntegerArray sequenceRemaining;
+	private final AtomicIntegerArray sequenceDataRemaining;
+
+	// The index of the current sequence in the sorted sequence list, or -1 if there are no sequences
+	private final AtomicInteger currentSequenceIndex = new AtomicInteger(-1);
 
 	public CalculationProgress(CalculationContext ctx) {
-		this.ctx = ctx;
-		this.featureDataUploaded = new HashMap<>();
-		this.featureStatsUploaded = new HashMap<>();
-		
-		incrementCurrentSequence();
-		
-		for (FeatureDTO f: ctx.getProtocolData().protocol.getFeatures()) {
-			updateProgressFeature(f.getId(), false);
+		this.sequences = ctx.getProtocolData().sequences.keySet().stream().sorted().toList();
+		for (int i = 0; i < sequences.size(); i++) sequenceIndexes.put(sequences.get(i), i);
+
+		List<String> welltypes = ctx.getWells().stream().map(WellDTO::getWellType).distinct().toList();
+		for (int i = 0; i < welltypes.size(); i++) welltypeIndexes.put(welltypes.get(i), i);
+
+		List<FeatureDTO> features = ctx.getProtocolData().protocol.getFeatures();
+		this.featureSlots = new int[features.size()];
+		this.featureSlotCounts = new int[features.size()];
+		this.featureSequenceIndexes = new int[features.size()];
+		int[] sequenceSlotCounts = new int[sequences.size()];
+		int[] sequenceFeatureCounts = new int[sequences.size()];
+
+		int slot = 0;
+		for (int fIndex = 0; fIndex < features.size(); fIndex++) {
+			FeatureDTO f = features.get(fIndex);
+			featureIndexes.put(f.getId(), fIndex);
+			featureSlots[fIndex] = slot++;
+
+			List<FeatureStatDTO> stats = ctx.getProtocolData().featureStats.get(f.getId());
+			if (stats != null) {
+				for (FeatureStatDTO stat: stats) {
+					statSlots.put(stat.getId(), slot);
+					if (!stat.getPlateStat()) welltypeStatIds.add(stat.getId());
+					slot += stat.getPlateStat() ? 1 : welltypes.size();
+				}
+			}
+			featureSlotCounts[fIndex] = slot - featureSlots[fIndex];
+
+			Integer sIndex = sequenceIndexes.get(f.getSequence());
+			featureSequenceIndexes[fIndex] = (sIndex == null) ? -1 : sIndex;
+			if (sIndex != null) {
+				sequenceSlotCounts[sIndex] += featureSlotCounts[fIndex];
+				sequenceFeatureCounts[sIndex]++;
+			}
 		}
+		this.slotCount = slot;
+		this.remainingCount = new AtomicInteger(slot);
+		this.uploaded = new AtomicLongArray((slot + 63) / 64);
+		this.featureRemaining = new AtomicIntegerArray(featureSlotCounts);
+		this.sequenceRemaining = new AtomicIntegerArray(sequenceSlotCounts);
+		this.sequenceDataRemaining = new AtomicIntegerArray(sequenceFeatureCounts);
+
+		incrementCurrentSequence();
 	}
-	
+
 	public void updateProgressFeature(long fId, boolean status) {
-		updateProgress(fId, null, null, status);
-		
-		List<FeatureStatDTO> stats = ctx.getProtocolData().featureStats.get(fId);
-		List<String> wellTypes = ctx.getWells().stream().map(WellDTO::getWellType).toList();
-		for (FeatureStatDTO stat: stats) {
-			if (stat.getPlateStat()) {
-				updateProgress(fId, stat.getId(), null, status);
-			} else {
-				for (String wt: wellTypes) {
-					updateProgress(fId, stat.getId(), wt, status);
-				}
-			}
+		Integer fIndex = featureIndexes.get(fId);
+		if (fIndex == null) return;
+		for (int slot = featureSlots[fIndex]; slot < featureSlots[fIndex] + featureSlotCounts[fIndex]; slot++) {
+			setUploaded(fIndex, slot, status);
 		}
 	}
-	
+
 	public void updateProgress(Object rsObject) {
 		if (rsObject instanceof ResultDataDTO) {
 			ResultDataDTO rs = (ResultDataDTO) rsObject;
-			updateProgress(rs.getFeatureId(), null, null, true);
+			updateProgress(rs.getFeatureId(), null, null);
 		} else if (rsObject instanceof ResultFeatureStatDTO) {
 			ResultFeatureStatDTO fs = (ResultFeatureStatDTO) rsObject;
-			updateProgress(fs.getFeatureId(), fs.getFeatureStatId(), fs.getWelltype(), true);	
+			updateProgress(fs.getFeatureId(), fs.getFeatureStatId(), fs.getWelltype());
+		} else if (rsObject instanceof ResultFeatureStatBatchDTO) {
+			ResultFeatureStatBatchDTO batch = (ResultFeatureStatBatchDTO) rsObject;
+			for (ResultFeatureStatDTO fs: batch.getResultFeatureStats()) {
+				updateProgress(fs.getFeatureId(), fs.getFeatureStatId(), fs.getWelltype());
+			}
 		}
 	}
-	
-	private synchronized void updateProgress(long fId, Long statId, String wellType, boolean status) {
+
+	private void updateProgress(Long fId, Long statId, String wellType) {
+		Integer fIndex = (fId == null) ? null : featureIndexes.get(fId);
+		if (fIndex == null) return;
+
 		if (statId == null) {
-			featureDataUploaded.put(fId, status);
+			setUploaded(fIndex, featureSlots[fIndex], true);
+			return;
+		}
+
+		Integer slot = statSlots.get(statId);
+		if (slot == null) return;
+		if (!welltypeStatIds.contains(statId)) {
+			setUploaded(fIndex, slot, true);
 		} else if (wellType == null) {
-			if (featureStatsUploaded.get(fId) == null) featureStatsUploaded.put(fId, new HashMap<>());
-			featureStatsUploaded.get(fId).put(String.valueOf(statId), status);
+			// A value without welltype (e.g. a failure of the whole stat) covers all welltypes of the stat
+			for (int wtIndex = 0; wtIndex < welltypeIndexes.size(); wtIndex++) setUploaded(fIndex, slot + wtIndex, true);
 		} else {
-			if (featureStatsUploaded.get(fId) == null) featureStatsUploaded.put(fId, new HashMap<>());
-			featureStatsUploaded.get(fId).put(String.format("%d_%s", statId, wellType), status);
+			Integer wtIndex = welltypeIndexes.get(wellType);
+			if (wtIndex != null) setUploaded(fIndex, slot + wtIndex, true);
 		}
 	}
-	
-	public synchronized boolean isFeatureComplete(long featureId) {
-		return featureDataUploaded.get(featureId) && featureStatsUploaded.get(featureId).values().stream().allMatch(v -> v);
+
+	private void setUploaded(int fIndex, int slot, boolean status) {
+		int word = slot >>> 6;
+		long mask = 1L << (slot & 63);
+		long current;
+		do {
+			current = uploaded.get(word);
+			if (((current & mask) != 0) == status) return;
+		} while (!uploaded.compareAndSet(word, current, current ^ mask));
+
+		// Only the thread that flipped the bit adjusts the counters
+		int delta = status ? -1 : 1;
+		featureRemaining.addAndGet(fIndex, delta);
+		int sIndex = featureSequenceIndexes[fIndex];
+		if (sIndex >= 0) {
+			if (slot == featureSlots[fIndex]) sequenceDataRemaining.addAndGet(sIndex, delta);
+			sequenceRemaining.addAndGet(sIndex, delta);
+		}
+		remainingCount.addAndGet(delta);
+	}
+
+	private boolean isUploaded(int slot) {
+		return (uploaded.get(slot >>> 6) & (1L << (slot & 63))) != 0;
 	}
-	
+
+	public boolean isFeatureDataUploaded(long featureId) {
+		Integer fIndex = featureIndexes.get(featureId);
+		return fIndex != null && isUploaded(featureSlots[fIndex]);
+	}
+
+	public boolean isFeatureComplete(long featureId) {
+		Integer fIndex = featureIndexes.get(featureId);
+		return fIndex != null && featureRemaining.get(fIndex) == 0;
+	}
+
 	public Integer getCurrentSequence() {
-		return currentSequence;
-	}
-	
-	public synchronized boolean isCurrentSequenceComplete() {
-		if (currentSequence == null) return false;
-		return ctx.getProtocolData().protocol.getFeatures().stream()
-			.filter(f -> currentSequence.equals(f.getSequence()))
-			.allMatch(f -> isFeatureComplete(f.getId()));
-	}
-	
-	public synchronized void incrementCurrentSequence() {
-		List<Integer> sequences = ctx.getProtocolData().sequences.keySet().stream().sorted().toList();
-		if (sequences.isEmpty()) return;
-		if (currentSequence == null) {
-			currentSequence = sequences.get(0);
-		} else {
-			int sIndex = sequences.indexOf(currentSequence);
-			if (sIndex + 1 < sequences.size()) currentSequence = sequences.get(sIndex + 1);
+		int sIndex = currentSequenceIndex.get();
+		return (sIndex < 0) ? null : sequences.get(sIndex);
+	}
+
+	public boolean isCurrentSequenceComplete() {
+		int sIndex = currentSequenceIndex.get();
+		return sIndex >= 0 && sequenceRemaining.get(sIndex) == 0;
+	}
+
+	/**
+	 * Check whether the data of all features of the current sequence has been uploaded,
+	 * regardless of the feature stats.
+	 */
+	public boolean isCurrentSequenceDataComplete() {
+		int sIndex = currentSequenceIndex.get();
+		return sIndex >= 0 && sequenceDataRemaining.get(sIndex) == 0;
+	}
+
+	/**
+	 * Check whether all features (including their feature stats) of the current and the previous sequences are complete.
+	 */
+	public boolean isCompleteUpToCurrentSequence() {
+		int currentIndex = currentSequenceIndex.get();
+		if (currentIndex < 0) return false;
+		for (int sIndex = 0; sIndex <= currentIndex; sIndex++) {
+			if (sequenceRemaining.get(sIndex) > 0) return false;
 		}
+		return true;
+	}
+
+	/**
+	 * Advance to the next sequence, if the current sequence is still the expected one and there is a next sequence.
+	 * If multiple threads attempt to advance the same sequence, only one of them succeeds.
+	 * 
+	 * @return True if the current sequence was advanced by this call.
+	 */
+	public boolean advanceSequence(Integer expectedSequence) {
+		Integer expectedIndex = (expectedSequence == null) ? null : sequenceIndexes.get(expectedSequence);
+		if (expectedIndex == null || expectedIndex + 1 >= sequences.size()) return false;
+		return currentSequenceIndex.compareAndSet(expectedIndex, expectedIndex + 1);
 	}
-	
-	public synchronized float getCompletedFraction() {
-		long calcCount = featureDataUploaded.size() + featureStatsUploaded.values().stream().flatMap(m -> m.values().stream()).count();
-		long completeCount = 
-				featureDataUploaded.values().stream().filter(v -> v).count()
-				+
-				featureStatsUploaded.values().stream().flatMap(m -> m.values().stream()).filter(v -> v).count();
-		return (float) completeCount / calcCount;
-	}
-	
-	public synchronized boolean isComplete() {
-		return getCompletedFraction() == 1.0f;
+
+	public void incrementCurrentSequence() {
+		if (sequences.isEmpty()) return;
+		currentSequenceIndex.getAndUpdate(sIndex -> (sIndex + 1 < sequences.size()) ? sIndex + 1 : sIndex);
+	}
+
+	public float getCompletedFraction() {
+		return (float) (slotCount - remainingCount.get()) / slotCount;
+	}
+
+	public boolean isComplete() {
+		return slotCount > 0 && remainingCount.get() == 0;
 	}
 }
@@ -0,0 +1,115 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A small, size-bounded cache whose entries expire a fixed time after they were loaded.
+ * When the cache is full, the least recently used entry is evicted.
+ *
+ * Loading happens outside the lock, so two threads missing the same key at the same time
+ * may both load it: the last one wins. This is acceptable for the idempotent lookups it is used for.
+ */
+public class ExpiringLruCache<K, V> {
+
+	private final long ttlMillis;
+	private final LongSupplier clock;
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	@FunctionalInterface
+	public interface Loader<V, E extends Exception> {
+		V load() throws E;
+	}
+
+	private record Entry<V>(V value, long expiresAt) {}
+
+	public ExpiringLruCache(int maxSize, long ttlMillis) {
+		this(maxSize, ttlMillis, System::currentTimeMillis);
+	}
+
+	public ExpiringLruCache(int maxSize, long ttlMillis, LongSupplier clock) {
+		this.ttlMillis = ttlMillis;
+		this.clock = clock;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public <E extends Exception> V get(K key, Loader<V, E> loader) throws E {
+		synchronized (entries) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null && entry.expiresAt() > clock.getAsLong()) {
+				hits.incrementAndGet();
+				return entry.value();
+			}
+			entries.remove(key);
+		}
+
+		misses.incrementAndGet();
+		V value = loader.load();
+		put(key, value);
+		return value;
+	}
+
+	public void put(K key, V value) {
+		if (value == null || ttlMillis <= 0) return;
+		synchronized (entries) {
+			entries.put(key, new Entry<>(value, clock.getAsLong() + ttlMillis));
+		}
+	}
+
+	public void invalidate(K key) {
+		synchronized (entries) {
+			entries.remove(key);
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
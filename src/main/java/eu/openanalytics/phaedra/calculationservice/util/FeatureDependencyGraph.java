@@ -0,0 +1,176 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+import eu.openanalytics.phaedra.protocolservice.enumeration.InputSource;
+
+/**
+ * The dependencies between the features of a protocol, as declared by
+ * their FEATURE-sourced calculation input values.
+ * 
+ * Besides the graph itself, this class keeps track of which features have been launched,
+ * so that each feature is launched exactly once when its dependencies become available.
+ */
+public class FeatureDependencyGraph {
+
+	private final Map<Long, Set<Long>> dependencies;
+	private final Map<Long, Set<Long>> dependents;
+	
+	private final Set<Long> launchedFeatures = new LinkedHashSet<>();
+
+	/**
+	 * @param dependencies For each feature ID, the IDs of the features it depends on.
+	 * References to features that are not a key of this map are ignored.
+	 */
+	public FeatureDependencyGraph(Map<Long, Set<Long>> dependencies) {
+		this.dependencies = new LinkedHashMap<>();
+		this.dependents = new HashMap<>();
+		for (Long featureId: dependencies.keySet()) {
+			this.dependencies.put(featureId, new LinkedHashSet<>());
+			this.dependents.put(featureId, new LinkedHashSet<>());
+		}
+		for (var entry: dependencies.entrySet()) {
+			for (Long dependency: entry.getValue()) {
+				if (!dependencies.containsKey(dependency)) continue;
+				this.dependencies.get(entry.getKey()).add(dependency);
+				this.dependents.get(dependency).add(entry.getKey());
+			}
+		}
+	}
+
+	public static FeatureDependencyGraph of(List<FeatureDTO> features) {
+		Map<Long, Set<Long>> dependencies = new LinkedHashMap<>();
+		for (FeatureDTO feature: features) {
+			Set<Long> featureDependencies = new LinkedHashSet<>();
+			if (feature.getCivs() != null) {
+				feature.getCivs().stream()
+					.filter(civ -> civ.getInputSource() == InputSource.FEATURE && civ.getSourceFeatureId() != null)
+					.forEach(civ -> featureDependencies.add(civ.getSourceFeatureId()));
+			}
+			dependencies.put(feature.getId(), featureDependencies);
+		}
+		return new FeatureDependencyGraph(dependencies);
+	}
+
+	public Set<Long> getFeatureIds() {
+		return Collections.unmodifiableSet(dependencies.keySet());
+	}
+
+	public Set<Long> getDependencies(long featureId) {
+		return Collections.unmodifiableSet(dependencies.getOrDefault(featureId, Collections.emptySet()));
+	}
+
+	public Set<Long> getDependents(long featureId) {
+		return Collections.unmodifiableSet(dependents.getOrDefault(featureId, Collections.emptySet()));
+	}
+
+	/**
+	 * Find the given features, and all features that depend on them directly or indirectly.
+	 * 
+	 * @return The IDs of these features, in protocol order.
+	 */
+	public Set<Long> getTransitiveDependents(Collection<Long> featureIds) {
+		Set<Long> found = new HashSet<>();
+		Deque<Long> queue = new ArrayDeque<>();
+		for (Long featureId: featureIds) {
+			if (dependencies.containsKey(featureId) && found.add(featureId)) queue.add(featureId);
+		}
+		while (!queue.isEmpty()) {
+			for (Long dependent: dependents.get(queue.poll())) {
+				if (found.add(dependent)) queue.add(dependent);
+			}
+		}
+		Set<Long> ordered = new LinkedHashSet<>();
+		for (Long featureId: dependencies.keySet()) {
+			if (found.contains(featureId)) ordered.add(featureId);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Find the features that can never be launched because they are part of, or depend on, a cycle.
+	 * 
+	 * @return The IDs of these features, or an empty list if the graph is acyclic.
+	 */
+	public List<Long> findCyclicFeatures() {
+		Map<Long, Integer> unresolvedCount = new HashMap<>();
+		Deque<Long> resolved = new ArrayDeque<>();
+		for (var entry: dependencies.entrySet()) {
+			unresolvedCount.put(entry.getKey(), entry.getValue().size());
+			if (entry.getValue().isEmpty()) resolved.add(entry.getKey());
+		}
+		while (!resolved.isEmpty()) {
+			Long featureId = resolved.poll();
+			unresolvedCount.remove(featureId);
+			for (Long dependent: dependents.get(featureId)) {
+				if (unresolvedCount.merge(dependent, -1, Integer::sum) == 0) resolved.add(dependent);
+			}
+		}
+		List<Long> cyclicFeatures = new ArrayList<>();
+		for (Long featureId: dependencies.keySet()) {
+			if (unresolvedCount.containsKey(featureId)) cyclicFeatures.add(featureId);
+		}
+		return cyclicFeatures;
+	}
+
+	/**
+	 * Mark all features that have not been launched yet, and whose dependencies are all available, as launched.
+	 * 
+	 * @param isAvailable Tests whether the data of a feature is available.
+	 * @return The IDs of the features that should be launched now, in protocol order.
+	 */
+	public synchronized List<Long> takeReadyFeatures(Predicate<Long> isAvailable) {
+		List<Long> readyFeatures = new ArrayList<>();
+		for (var entry: dependencies.entrySet()) {
+			if (launchedFeatures.contains(entry.getKey())) continue;
+			if (entry.getValue().stream().allMatch(isAvailable)) readyFeatures.add(entry.getKey());
+		}
+		launchedFeatures.addAll(readyFeatures);
+		return readyFeatures;
+	}
+
+	/**
+	 * Mark features as launched without returning them from {@link #takeReadyFeatures(Predicate)},
+	 * for example because their data is provided in another way.
+	 */
+	public synchronized void markLaunched(Collection<Long> featureIds) {
+		launchedFeatures.addAll(featureIds);
+	}
+
+	public synchronized Set<Long> getLaunchedFeatures() {
+		return new HashSet<>(launchedFeatures);
+	}
+}
@@ -0,0 +1,304 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer.Optimum;
+import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DiagonalMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Fits a 4-parameter logistic (4PL) dose-response curve, similar to receptor2's fittingLogisticModel.
+ * 
+ * Doses are expressed as -log10(concentration), and the model is:
+ * <pre>response = bottom + (top - bottom) / (1 + 10^(slope * (dose - pIC50)))</pre>
+ * 
+ * The fit is a Levenberg-Marquardt least squares fit, made robust against outliers by iteratively
+ * reweighting the points with Tukey's biweight function. Optionally, the bottom is fixed.
+ */
+public class LogisticCurveFitter {
+
+	private static final double LN10 = Math.log(10);
+	private static final double TUKEY_C = 4.685;
+	// Scales the median absolute residual to a consistent estimator of the standard deviation
+	private static final double MAD_SCALE = 1.4826;
+	private static final int MAX_REWEIGHT_ITERATIONS = 20;
+	private static final double WEIGHT_TOLERANCE = 1e-4;
+	private static final int MAX_EVALUATIONS = 10000;
+	private static final int PLOT_POINTS = 100;
+
+	private final double confLevel;
+
+	public LogisticCurveFitter(double confLevel) {
+		this.confLevel = confLevel;
+	}
+
+	public static record Coefficient(double estimate, double stdError, double lowerCI, double upperCI) {}
+
+	public static record FitResult(
+			Coefficient bottom, Coefficient top, Coefficient slope, Coefficient pIC50,
+			String pIC50toReport, double pIC20, double pIC80,
+			double eMin, double eMinDose, double eMax, double eMaxDose,
+			double residualVariance, float[] weights, float[] plotDoses, float[] plotPredictions,
+			String warning) {}
+
+	/**
+	 * Fit a curve.
+	 * 
+	 * @param doses The doses, as -log10(concentration).
+	 * @param responses The responses.
+	 * @param accepts For each point, 1 if the point is accepted, 0 if it must be ignored.
+	 * @param fixedBottom The value to fix the bottom at, or null to estimate the bottom.
+	 * @param ascending True if the response increases with the concentration.
+	 * @return The fit result, or null if there are not enough valid points or the fit failed.
+	 */
+	public FitResult fit(float[] doses, float[] responses, float[] accepts, Double fixedBottom, boolean ascending) {
+		int n = doses.length;
+		boolean[] valid = new boolean[n];
+		int validCount = 0;
+		for (int i = 0; i < n; i++) {
+			valid[i] = accepts[i] != 0 && !Float.isNaN(doses[i]) && !Float.isNaN(responses[i]);
+			if (valid[i]) validCount++;
+		}
+		int paramCount = (fixedBottom == null) ? 4 : 3;
+		if (validCount <= paramCount) return null;
+
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] weights = new double[n];
+		double minDose = Double.MAX_VALUE;
+		double maxDose = -Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			x[i] = doses[i];
+			y[i] = valid[i] ? responses[i] : 0;
+			weights[i] = valid[i] ? 1 : 0;
+			if (valid[i]) {
+				minDose = Math.min(minDose, x[i]);
+				maxDose = Math.max(maxDose, x[i]);
+			}
+		}
+
+		Model model = new Model(x, fixedBottom);
+		double[] params = model.initialGuess(y, valid, ascending);
+		Optimum optimum = null;
+		List<String> warnings = new ArrayList<>();
+
+		try {
+			// Iteratively reweighted least squares, with Tukey biweights
+			for (int iteration = 0; iteration < MAX_REWEIGHT_ITERATIONS; iteration++) {
+				optimum = new LevenbergMarquardtOptimizer().optimize(new LeastSquaresBuilder()
+						.start(params)
+						.model(model)
+						.target(y)
+						.weight(new DiagonalMatrix(weights))
+						.maxEvaluations(MAX_EVALUATIONS)
+						.maxIterations(MAX_EVALUATIONS)
+						.build());
+				params = optimum.getPoint().toArray();
+
+				double[] newWeights = calculateTukeyWeights(model.predict(params), y, valid);
+				if (newWeights == null) break;
+				double maxChange = 0;
+				for (int i = 0; i < n; i++) maxChange = Math.max(maxChange, Math.abs(newWeights[i] - weights[i]));
+				weights = newWeights;
+				if (maxChange < WEIGHT_TOLERANCE) break;
+				if (iteration == MAX_REWEIGHT_ITERATIONS - 1) warnings.add("Robust weights did not converge");
+			}
+		} catch (MathIllegalStateException e) {
+			return null;
+		}
+
+		// Residual variance and covariance of the final fit
+		double[] predictions = model.predict(params);
+		double weightedSumSq = 0;
+		int effectiveCount = 0;
+		for (int i = 0; i < n; i++) {
+			if (weights[i] <= 0) continue;
+			weightedSumSq += weights[i] * Math.pow(y[i] - predictions[i], 2);
+			effectiveCount++;
+		}
+		int degreesOfFreedom = effectiveCount - paramCount;
+		double residualVariance = (degreesOfFreedom > 0) ? weightedSumSq / degreesOfFreedom : Double.NaN;
+		double tValue = (degreesOfFreedom > 0) ? new TDistribution(degreesOfFreedom).inverseCumulativeProbability(1 - (1 - confLevel) / 2) : Double.NaN;
+
+		double[] stdErrors = new double[paramCount];
+		try {
+			RealMatrix covariances = optimum.getCovariances(1e-14);
+			for (int p = 0; p < paramCount; p++) stdErrors[p] = Math.sqrt(covariances.getEntry(p, p) * residualVariance);
+		} catch (MathIllegalStateException e) {
+			Arrays.fill(stdErrors, Double.NaN);
+			warnings.add("Singular covariance matrix");
+		}
+
+		Coefficient bottom = (fixedBottom == null)
+				? coefficient(params[0], stdErrors[0], tValue)
+				: new Coefficient(fixedBottom, Double.NaN, Double.NaN, Double.NaN);
+		int offset = (fixedBottom == null) ? 1 : 0;
+		Coefficient top = coefficient(params[offset], stdErrors[offset], tValue);
+		Coefficient slope = coefficient(params[offset + 1], stdErrors[offset + 1], tValue);
+		Coefficient pIC50 = coefficient(params[offset + 2], stdErrors[offset + 2], tValue);
+
+		// The dose at which x% of the effect (top - bottom) is reached
+		double pIC20 = pIC50.estimate() + Math.log10(100.0 / 20 - 1) / slope.estimate();
+		double pIC80 = pIC50.estimate() + Math.log10(100.0 / 80 - 1) / slope.estimate();
+
+		String pIC50toReport = String.format(Locale.ROOT, "%.3f", pIC50.estimate());
+		if (pIC50.estimate() > maxDose) {
+			pIC50toReport = String.format(Locale.ROOT, ">%.3f", maxDose);
+			warnings.add("pIC50 is outside the tested dose range");
+		} else if (pIC50.estimate() < minDose) {
+			pIC50toReport = String.format(Locale.ROOT, "<%.3f", minDose);
+			warnings.add("pIC50 is outside the tested dose range");
+		}
+
+		// Range of the predicted response over the tested doses
+		double eMin = Double.NaN, eMinDose = Double.NaN, eMax = Double.NaN, eMaxDose = Double.NaN;
+		for (int i = 0; i < n; i++) {
+			if (!valid[i]) continue;
+			if (Double.isNaN(eMin) || predictions[i] < eMin) { eMin = predictions[i]; eMinDose = x[i]; }
+			if (Double.isNaN(eMax) || predictions[i] > eMax) { eMax = predictions[i]; eMaxDose = x[i]; }
+		}
+
+		float[] plotDoses = new float[PLOT_POINTS];
+		float[] plotPredictions = new float[PLOT_POINTS];
+		for (int i = 0; i < PLOT_POINTS; i++) {
+			double dose = minDose + (maxDose - minDose) * i / (PLOT_POINTS - 1);
+			plotDoses[i] = (float) dose;
+			plotPredictions[i] = (float) model.predict(params, dose);
+		}
+
+		float[] finalWeights = new float[n];
+		for (int i = 0; i < n; i++) finalWeights[i] = (float) weights[i];
+
+		return new FitResult(bottom, top, slope, pIC50, pIC50toReport, pIC20, pIC80,
+				eMin, eMinDose, eMax, eMaxDose, residualVariance, finalWeights, plotDoses, plotPredictions,
+				warnings.isEmpty() ? null : String.join("; ", warnings));
+	}
+
+	private Coefficient coefficient(double estimate, double stdError, double tValue) {
+		return new Coefficient(estimate, stdError, estimate - tValue * stdError, estimate + tValue * stdError);
+	}
+
+	/**
+	 * @return The new weights, or null if the residuals are all (near) zero.
+	 */
+	private static double[] calculateTukeyWeights(double[] predictions, double[] y, boolean[] valid) {
+		double[] absResiduals = new double[y.length];
+		int count = 0;
+		for (int i = 0; i < y.length; i++) {
+			if (valid[i]) absResiduals[count++] = Math.abs(y[i] - predictions[i]);
+		}
+		double[] sorted = Arrays.copyOf(absResiduals, count);
+		Arrays.sort(sorted);
+		double medianAbsResidual = (count % 2 == 0) ? (sorted[count / 2 - 1] + sorted[count / 2]) / 2 : sorted[count / 2];
+		double scale = MAD_SCALE * medianAbsResidual;
+		if (scale < 1e-12) return null;
+
+		double[] weights = new double[y.length];
+		for (int i = 0; i < y.length; i++) {
+			if (!valid[i]) continue;
+			double u = (y[i] - predictions[i]) / (TUKEY_C * scale);
+			weights[i] = (Math.abs(u) < 1) ? Math.pow(1 - u * u, 2) : 0;
+		}
+		return weights;
+	}
+
+	private static class Model implements MultivariateJacobianFunction {
+
+		private final double[] x;
+		private final Double fixedBottom;
+
+		public Model(double[] x, Double fixedBottom) {
+			this.x = x;
+			this.fixedBottom = fixedBottom;
+		}
+
+		public double[] initialGuess(double[] y, boolean[] valid, boolean ascending) {
+			double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE, sumX = 0;
+			int count = 0;
+			for (int i = 0; i < y.length; i++) {
+				if (!valid[i]) continue;
+				minY = Math.min(minY, y[i]);
+				maxY = Math.max(maxY, y[i]);
+				sumX += x[i];
+				count++;
+			}
+			double slope = ascending ? 1 : -1;
+			if (fixedBottom == null) return new double[] { minY, maxY, slope, sumX / count };
+			return new double[] { maxY, slope, sumX / count };
+		}
+
+		public double[] predict(double[] params) {
+			double[] predictions = new double[x.length];
+			for (int i = 0; i < x.length; i++) predictions[i] = predict(params, x[i]);
+			return predictions;
+		}
+
+		public double predict(double[] params, double dose) {
+			double bottom = (fixedBottom == null) ? params[0] : fixedBottom;
+			int offset = (fixedBottom == null) ? 1 : 0;
+			double top = params[offset], slope = params[offset + 1], pIC50 = params[offset + 2];
+			return bottom + (top - bottom) / (1 + power(slope, dose, pIC50));
+		}
+
+		@Override
+		public Pair<RealVector, RealMatrix> value(RealVector point) {
+			double[] params = point.toArray();
+			double bottom = (fixedBottom == null) ? params[0] : fixedBottom;
+			int offset = (fixedBottom == null) ? 1 : 0;
+			double top = params[offset], slope = params[offset + 1], pIC50 = params[offset + 2];
+
+			double[] values = new double[x.length];
+			double[][] jacobian = new double[x.length][params.length];
+			for (int i = 0; i < x.length; i++) {
+				double u = power(slope, x[i], pIC50);
+				double d = 1 + u;
+				values[i] = bottom + (top - bottom) / d;
+
+				// u / d^2, written to avoid overflow for large u
+				double ud2 = Double.isInfinite(u) ? 0 : u / (d * d);
+				if (fixedBottom == null) jacobian[i][0] = 1 - 1 / d;
+				jacobian[i][offset] = 1 / d;
+				jacobian[i][offset + 1] = -(top - bottom) * ud2 * LN10 * (x[i] - pIC50);
+				jacobian[i][offset + 2] = (top - bottom) * ud2 * LN10 * slope;
+			}
+			return new Pair<>(new ArrayRealVector(values, false), new Array2DRowRealMatrix(jacobian, false));
+		}
+
+		private static double power(double slope, double dose, double pIC50) {
+			double exponent = Math.max(-700, Math.min(700, slope * (dose - pIC50) * LN10));
+			return Math.exp(exponent);
+		}
+	}
+}
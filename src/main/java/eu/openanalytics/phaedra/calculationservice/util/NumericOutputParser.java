@@ -0,0 +1,158 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+/**
+ * Reads numeric values from script output documents without intermediate objects.
+ * 
+ * Scripts (R in particular) do not always produce clean numbers: missing values may be written
+ * as "NA", "NaN", null or an empty string. All values that are not numeric are read as NaN,
+ * without throwing an exception per value.
+ */
+public class NumericOutputParser {
+
+	/**
+	 * Stream through a JSON object and read the array in the given top-level field into a float[].
+	 * 
+	 * @return the values, or null if the field is missing or null
+	 * @throws IOException if the document is not valid JSON, or the field does not contain an array of scalars
+	 */
+	public static float[] parseFloatArray(JsonFactory jsonFactory, String json, String fieldName) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) throw new IOException("Output is not a JSON object");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (!fieldName.equals(name)) {
+					parser.skipChildren();
+					continue;
+				}
+				if (token == JsonToken.VALUE_NULL) return null;
+				return readFloatArray(parser);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Read the array at the current token (START_ARRAY) of the parser.
+	 */
+	public static float[] readFloatArray(JsonParser parser) throws IOException {
+		if (parser.currentToken() != JsonToken.START_ARRAY) throw new IOException("Expected an array of values, got " + parser.currentToken());
+		float[] values = new float[256];
+		int count = 0;
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == null) throw new IOException("Unexpected end of array");
+			if (count == values.length) values = Arrays.copyOf(values, values.length * 2);
+			values[count++] = readFloat(parser);
+		}
+		return Arrays.copyOf(values, count);
+	}
+
+	/**
+	 * Read the scalar at the current token of the parser as a float.
+	 */
+	public static float readFloat(JsonParser parser) throws IOException {
+		switch (parser.currentToken()) {
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			return parser.getFloatValue();
+		case VALUE_STRING:
+			return parseFloat(parser.getText());
+		case VALUE_NULL:
+		case VALUE_TRUE:
+		case VALUE_FALSE:
+			return Float.NaN;
+		default:
+			throw new IOException("Expected a numeric value, got " + parser.currentToken());
+		}
+	}
+
+	private static float parseFloat(String text) {
+		if (text == null) return Float.NaN;
+		// Like Float.parseFloat, accept leading and trailing whitespace (trim does not copy a string that has none)
+		text = text.trim();
+		if (!isNumeric(text)) return Float.NaN;
+		try {
+			return Float.parseFloat(text);
+		} catch (NumberFormatException e) {
+			return Float.NaN;
+		}
+	}
+
+	/**
+	 * A cheap pre-check that rejects the usual missing value markers (NA, NaN, empty) before parsing.
+	 */
+	private static boolean isNumeric(String text) {
+		if (text == null || text.isEmpty()) return false;
+		char c = text.charAt(0);
+		return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || text.equals("Infinity");
+	}
+
+	/**
+	 * A float[] deserializer that reads non-numeric values as NaN.
+	 */
+	public static class FloatArrayDeserializer extends StdDeserializer<float[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		public FloatArrayDeserializer() {
+			super(float[].class);
+		}
+
+		@Override
+		public float[] deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+			return readFloatArray(parser);
+		}
+	}
+
+	/**
+	 * A Float deserializer that reads non-numeric values as NaN.
+	 */
+	public static class FloatDeserializer extends StdDeserializer<Float> {
+
+		private static final long serialVersionUID = 1L;
+
+		public FloatDeserializer() {
+			super(Float.class);
+		}
+
+		@Override
+		public Float deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+			return readFloat(parser);
+		}
+
+		@Override
+		public Float getNullValue(DeserializationContext ctxt) {
+			return Float.NaN;
+		}
+	}
+}
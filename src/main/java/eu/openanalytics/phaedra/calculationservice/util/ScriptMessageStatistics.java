@@ -0,0 +1,83 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters about the script execution messages sent to the script engine.
+ * 
+ * Byte counts are estimates, based on the size of the scripts and of the serialized input documents.
+ * The "unbatched" counters are what would have been sent if every request was sent as a separate message,
+ * carrying its own copy of any shared input.
+ */
+public class ScriptMessageStatistics {
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong messageCount = new AtomicLong();
+	private final AtomicLong byteCount = new AtomicLong();
+	private final AtomicLong unbatchedByteCount = new AtomicLong();
+
+	public void recordMessage(int requests, long bytes, long unbatchedBytes) {
+		requestCount.addAndGet(requests);
+		messageCount.incrementAndGet();
+		byteCount.addAndGet(bytes);
+		unbatchedByteCount.addAndGet(unbatchedBytes);
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getMessageCount() {
+		return messageCount.get();
+	}
+
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	public long getSavedMessageCount() {
+		return requestCount.get() - messageCount.get();
+	}
+
+	public long getSavedByteCount() {
+		return unbatchedByteCount.get() - byteCount.get();
+	}
+
+	public Map<String, Number> toMap() {
+		Map<String, Number> map = new LinkedHashMap<>();
+		map.put("requests", getRequestCount());
+		map.put("messages", getMessageCount());
+		map.put("bytes", getByteCount());
+		map.put("savedMessages", getSavedMessageCount());
+		map.put("savedBytes", getSavedByteCount());
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d requests in %d messages, %d bytes (%d messages and %d bytes saved by batching)",
+				getRequestCount(), getMessageCount(), getByteCount(), getSavedMessageCount(), getSavedByteCount());
+	}
+}
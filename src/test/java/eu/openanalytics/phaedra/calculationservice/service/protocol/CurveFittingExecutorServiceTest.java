@@ -0,0 +1,113 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.protocol;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.openanalytics.phaedra.calculationservice.model.SubstanceWellIndex;
+import eu.openanalytics.phaedra.calculationservice.model.SubstanceWellIndex.SubstanceWells;
+import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.service.PlateMetadataCache;
+import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionService;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationExecutor;
+import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.DRCModelDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
+
+public class CurveFittingExecutorServiceTest {
+
+    private static final long PLATE_ID = 1;
+    private static final long FEATURE_ID = 2;
+
+    /**
+     * The executor accepts the curve fit request and the fit of substance A, but rejects the fit of substance B.
+     * The curves of the feature must still complete, with a curve for substance A only.
+     */
+    @Test
+    public void rejectedNativeFitTest() throws Exception {
+        var executor = mock(CalculationExecutor.class);
+        var executeCount = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (executeCount.incrementAndGet() > 2) throw new RejectedExecutionException("Executor is full");
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(executor).execute(any());
+
+        var service = new CurveFittingExecutorService(createPlateMetadataCache(), mock(KafkaProducerService.class), mock(ScriptExecutionService.class),
+                new ObjectMapper(), executor, Set.of("PL4"), 100, false);
+
+        var featureResultData = ResultDataDTO.builder().resultSetId(3L).featureId(FEATURE_ID).values(createResponses()).build();
+        var curves = service.execute(PLATE_ID, featureResultData).curves().get(5, TimeUnit.SECONDS);
+
+        Assertions.assertEquals(3, executeCount.get());
+        Assertions.assertEquals(1, curves.size());
+        Assertions.assertEquals("A", curves.get(0).getSubstanceName());
+    }
+
+    private PlateMetadataCache createPlateMetadataCache() throws Exception {
+        int n = 10;
+        long[] wellIds = new long[n];
+        int[] valueIndexes = new int[n];
+        float[] concs = new float[n];
+        float[] accepts = new float[n];
+        for (int i = 0; i < n; i++) {
+            wellIds[i] = i + 1;
+            valueIndexes[i] = i;
+            concs[i] = 4f + i * 0.5f;
+            accepts[i] = 1;
+        }
+        var substanceWellIndex = mock(SubstanceWellIndex.class);
+        when(substanceWellIndex.getSubstances()).thenReturn(List.of("A", "B"));
+        when(substanceWellIndex.getWells(any())).thenReturn(new SubstanceWells(wellIds, valueIndexes, concs, accepts));
+
+        var plateMetadataCache = mock(PlateMetadataCache.class);
+        when(plateMetadataCache.getPlate(PLATE_ID)).thenReturn(PlateDTO.builder().id(PLATE_ID).build());
+        when(plateMetadataCache.getWells(PLATE_ID)).thenReturn(List.of());
+        when(plateMetadataCache.getSubstanceWellIndex(PLATE_ID)).thenReturn(substanceWellIndex);
+        when(plateMetadataCache.getFeature(FEATURE_ID)).thenReturn(FeatureDTO.builder().id(FEATURE_ID)
+                .drcModel(DRCModelDTO.builder().name("PL4").slope("ascending").build()).build());
+        return plateMetadataCache;
+    }
+
+    private static float[] createResponses() {
+        // A curve with bottom 0, top 100, slope 1 and pIC50 6
+        float[] responses = new float[10];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = (float) (100 / (1 + Math.pow(10, 4 + i * 0.5 - 6)));
+        }
+        return responses;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.protocol;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.openanalytics.phaedra.calculationservice.enumeration.ScriptLanguage;
+import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
+import eu.openanalytics.phaedra.calculationservice.model.Formula;
+import eu.openanalytics.phaedra.calculationservice.model.ModelMapper;
+import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.service.protocol.ProtocolDataCollector.ProtocolData;
+import eu.openanalytics.phaedra.calculationservice.service.script.JavaStatExecutor;
+import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionBatch;
+import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionService;
+import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
+import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureStatDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.ProtocolDTO;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultFeatureStatDTO;
+import eu.openanalytics.phaedra.resultdataservice.enumeration.StatusCode;
+import eu.openanalytics.phaedra.scriptengine.dto.ResponseStatusCode;
+import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
+
+public class FeatureStatExecutorServiceTest {
+
+    private JavaStatExecutor javaStatExecutor;
+    private KafkaProducerService kafkaProducerService;
+    private ScriptExecutionBatch batch;
+    private FeatureStatExecutorService featureStatExecutorService;
+
+    @BeforeEach
+    public void setup() {
+        javaStatExecutor = mock(JavaStatExecutor.class);
+        kafkaProducerService = mock(KafkaProducerService.class);
+        var scriptExecutionService = mock(ScriptExecutionService.class);
+        batch = mock(ScriptExecutionBatch.class);
+        when(scriptExecutionService.newBatch(any(), any())).thenReturn(batch);
+        featureStatExecutorService = new FeatureStatExecutorService(new ObjectMapper(), new ModelMapper(), kafkaProducerService,
+                scriptExecutionService, javaStatExecutor, false);
+    }
+
+    @Test
+    public void failedWelltypeStatTest() {
+        when(javaStatExecutor.isSupported(anyString())).thenReturn(true);
+        when(javaStatExecutor.calculateWelltypeValues(anyString(), any(), any())).thenThrow(new IllegalArgumentException("Bad stat"));
+        var ctx = createContext();
+
+        var feature = ctx.getProtocolData().protocol.getFeatures().get(0);
+        featureStatExecutorService.executeFeatureStats(ctx, feature, new float[] { 1f, 2f, 3f });
+
+        // The failed stat still yields a value for every welltype, so that the calculation can complete
+        var results = captureResults();
+        Assertions.assertEquals(2, results.size());
+        Assertions.assertTrue(results.stream().allMatch(fs -> fs.getStatusCode() == StatusCode.FAILURE));
+        Assertions.assertTrue(ctx.getErrorCollector().hasError());
+        assertCalculationComplete(ctx, results);
+    }
+
+    @Test
+    public void timedOutScriptStatTest() {
+        var ctx = createContext();
+        var feature = ctx.getProtocolData().protocol.getFeatures().get(0);
+        featureStatExecutorService.executeFeatureStats(ctx, feature, new float[] { 1f, 2f, 3f });
+
+        // The script request times out: its output has an error status and no output document
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Consumer<ScriptExecutionOutputDTO>> callbackCaptor = ArgumentCaptor.forClass(Consumer.class);
+        verify(batch).add(any(), any(), any(), callbackCaptor.capture());
+        callbackCaptor.getValue().accept(ScriptExecutionOutputDTO.builder()
+                .statusCode(ResponseStatusCode.WORKER_INTERNAL_ERROR)
+                .statusMessage("Script execution timed out after 4 tries")
+                .exitCode(-1)
+                .build());
+
+        var results = captureResults();
+        Assertions.assertEquals(2, results.size());
+        Assertions.assertTrue(results.stream().allMatch(fs -> fs.getStatusCode() == StatusCode.FAILURE));
+        Assertions.assertTrue(ctx.getErrorCollector().hasError());
+        assertCalculationComplete(ctx, results);
+    }
+
+    private List<ResultFeatureStatDTO> captureResults() {
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ResultFeatureStatDTO>> captor = ArgumentCaptor.forClass(List.class);
+        verify(kafkaProducerService).sendResultFeatureStats(eq(1L), captor.capture());
+        return captor.getAllValues().stream().flatMap(List::stream).toList();
+    }
+
+    private static void assertCalculationComplete(CalculationContext ctx, List<ResultFeatureStatDTO> results) {
+        var progress = ctx.getCalculationProgress();
+        progress.updateProgress(ResultDataDTO.builder().resultSetId(1L).featureId(1L).build());
+        results.forEach(progress::updateProgress);
+        Assertions.assertTrue(progress.isComplete());
+    }
+
+    private static CalculationContext createContext() {
+        var features = List.of(FeatureDTO.builder().id(1L).sequence(0).civs(List.of()).build());
+        var data = new ProtocolData();
+        data.protocol = ProtocolDTO.builder().id(1L).features(features).build();
+        data.sequences = features.stream().collect(Collectors.groupingBy(FeatureDTO::getSequence));
+        data.featureStats = Map.of(1L, List.of(
+                FeatureStatDTO.builder().id(10L).featureId(1L).formulaId(201L).name("mean").plateStat(false).welltypeStat(true).build()));
+        data.formulas = Map.of(201L, Formula.builder().id(201L).formula("mean").language(ScriptLanguage.JAVASTAT).build());
+        var wells = List.of(
+                WellDTO.builder().id(1L).wellType("LC").build(),
+                WellDTO.builder().id(2L).wellType("HC").build(),
+                WellDTO.builder().id(3L).wellType("LC").build());
+        return CalculationContext.newInstance(data, PlateDTO.builder().id(1L).build(), wells, 1L, 1L);
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.protocol;
+
+import static org.mockito.Mockito.mock;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import eu.openanalytics.phaedra.calculationservice.enumeration.ScriptLanguage;
+import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
+import eu.openanalytics.phaedra.calculationservice.model.Formula;
+import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.service.protocol.ProtocolDataCollector.ProtocolData;
+import eu.openanalytics.phaedra.calculationservice.support.InMemoryResultDataServiceClient;
+import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
+import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.CalculationInputValueDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureStatDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.ProtocolDTO;
+import eu.openanalytics.phaedra.protocolservice.enumeration.InputSource;
+import eu.openanalytics.phaedra.resultdataservice.enumeration.StatusCode;
+
+public class IncrementalCalculationServiceTest {
+
+    private static final long PROTOCOL_ID = 1L;
+    private static final long PLATE_ID = 2L;
+    private static final long MEAS_ID = 3L;
+
+    private InMemoryResultDataServiceClient resultDataServiceClient;
+    private IncrementalCalculationService incrementalCalculationService;
+    private LocalDateTime baseStart;
+    private long baseResultSetId;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        resultDataServiceClient = new InMemoryResultDataServiceClient();
+        incrementalCalculationService = new IncrementalCalculationService(resultDataServiceClient,
+                mock(FeatureStatExecutorService.class), mock(KafkaProducerService.class));
+
+        // The base calculation has successful results for all features except feature 4
+        var baseResultSet = resultDataServiceClient.createResultDataSet(PROTOCOL_ID, PLATE_ID, MEAS_ID);
+        baseResultSetId = baseResultSet.getId();
+        baseStart = baseResultSet.getExecutionStartTimeStamp();
+        for (long featureId: List.of(1L, 2L, 3L, 5L)) {
+            resultDataServiceClient.addResultData(baseResultSetId, featureId, new float[] { featureId }, StatusCode.SUCCESS, null, 0);
+        }
+        resultDataServiceClient.addResultData(baseResultSetId, 4L, null, StatusCode.FAILURE, "Script error", 1);
+
+        // Feature 1 has all its stat values, feature 5 lacks the value of welltype HC
+        addStat(1L, 10L, null);
+        addStat(1L, 11L, "LC");
+        addStat(1L, 11L, "HC");
+        addStat(5L, 50L, "LC");
+    }
+
+    @Test
+    public void createPlanTest() throws Exception {
+        var ctx = createContext(PROTOCOL_ID, PLATE_ID, MEAS_ID);
+        var plan = incrementalCalculationService.createPlan(ctx, baseResultSetId);
+
+        // Feature 2 has a changed formula, feature 3 references feature 2, and feature 4 has no successful base result
+        Assertions.assertEquals(Set.of(1L, 5L), plan.reusedData().keySet());
+        Assertions.assertEquals(Set.of(1L, 5L), ctx.getReusedFeatureIds());
+        Assertions.assertEquals(Set.of(1L, 5L), ctx.getFeatureValues().keySet());
+        Assertions.assertArrayEquals(new float[] { 5f }, ctx.getFeatureValues().get(5L));
+
+        // The stats of feature 5 are calculated again, since a welltype value is missing
+        Assertions.assertEquals(Set.of(1L), plan.reusedStats().keySet());
+        Assertions.assertEquals(3, plan.reusedStats().get(1L).size());
+    }
+
+    @Test
+    public void mismatchedBaseResultSetTest() throws Exception {
+        for (var ctx: List.of(
+                createContext(PROTOCOL_ID + 1, PLATE_ID, MEAS_ID),
+                createContext(PROTOCOL_ID, PLATE_ID + 1, MEAS_ID),
+                createContext(PROTOCOL_ID, PLATE_ID, MEAS_ID + 1))) {
+            Assertions.assertNull(incrementalCalculationService.createPlan(ctx, baseResultSetId));
+            Assertions.assertTrue(ctx.getReusedFeatureIds().isEmpty());
+            Assertions.assertTrue(ctx.getFeatureValues().isEmpty());
+        }
+    }
+
+    private void addStat(long featureId, long featureStatId, String welltype) {
+        resultDataServiceClient.createResultFeatureStat(baseResultSetId, featureId, featureStatId, Optional.of(1f),
+                "stat" + featureStatId, welltype, StatusCode.SUCCESS, null, 0);
+    }
+
+    private CalculationContext createContext(long protocolId, long plateId, long measId) {
+        var features = List.of(
+                feature(1L, 0, 101L),
+                feature(2L, 1, 102L, 1L),
+                feature(3L, 2, 103L, 2L),
+                feature(4L, 0, 104L),
+                feature(5L, 1, 105L, 1L));
+        var data = new ProtocolData();
+        data.protocol = ProtocolDTO.builder().id(protocolId).features(features).build();
+        data.sequences = features.stream().collect(Collectors.groupingBy(FeatureDTO::getSequence));
+        data.featureStats = Map.of(
+                1L, List.of(
+                        FeatureStatDTO.builder().id(10L).featureId(1L).formulaId(201L).plateStat(true).welltypeStat(false).build(),
+                        FeatureStatDTO.builder().id(11L).featureId(1L).formulaId(201L).plateStat(false).welltypeStat(true).build()),
+                5L, List.of(
+                        FeatureStatDTO.builder().id(50L).featureId(5L).formulaId(201L).plateStat(false).welltypeStat(true).build()));
+        data.formulas = Map.of(
+                101L, formula(101L, null),
+                102L, formula(102L, baseStart.plusHours(1)),
+                103L, formula(103L, null),
+                104L, formula(104L, null),
+                105L, formula(105L, baseStart.minusHours(1)),
+                201L, formula(201L, null));
+        var wells = List.of(
+                WellDTO.builder().id(1L).wellType("LC").build(),
+                WellDTO.builder().id(2L).wellType("HC").build());
+        return CalculationContext.newInstance(data, PlateDTO.builder().id(plateId).build(), wells, 10L, measId);
+    }
+
+    private static FeatureDTO feature(long id, int sequence, long formulaId, Long... sourceFeatureIds) {
+        var civs = List.of(sourceFeatureIds).stream()
+                .map(sourceId -> CalculationInputValueDTO.builder().inputSource(InputSource.FEATURE).sourceFeatureId(sourceId).build())
+                .toList();
+        return FeatureDTO.builder().id(id).sequence(sequence).formulaId(formulaId).civs(civs).build();
+    }
+
+    private Formula formula(long id, LocalDateTime updatedOn) {
+        return Formula.builder().id(id).language(ScriptLanguage.JAVASTAT)
+                .createdOn(baseStart.minusDays(1)).updatedOn(updatedOn).build();
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.protocol;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import eu.openanalytics.phaedra.calculationservice.enumeration.ExecutionMode;
+import eu.openanalytics.phaedra.calculationservice.enumeration.RejectionPolicy;
+import eu.openanalytics.phaedra.calculationservice.enumeration.SchedulingMode;
+import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
+import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.service.PlateMetadataCache;
+import eu.openanalytics.phaedra.calculationservice.service.protocol.ProtocolDataCollector.ProtocolData;
+import eu.openanalytics.phaedra.calculationservice.service.script.ScriptExecutionBatch;
+import eu.openanalytics.phaedra.calculationservice.support.InMemoryResultDataServiceClient;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationExecutor;
+import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
+import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
+import eu.openanalytics.phaedra.plateservice.enumeration.CalculationStatus;
+import eu.openanalytics.phaedra.protocolservice.dto.CalculationInputValueDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.ProtocolDTO;
+import eu.openanalytics.phaedra.protocolservice.enumeration.InputSource;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
+import eu.openanalytics.phaedra.resultdataservice.enumeration.StatusCode;
+
+public class ProtocolExecutorServiceTest {
+
+    private static final long PROTOCOL_ID = 1L;
+    private static final long PLATE_ID = 2L;
+    private static final long MEAS_ID = 3L;
+
+    private FeatureExecutorService featureExecutorService;
+    private ProtocolDataCollector protocolDataCollector;
+    private KafkaProducerService kafkaProducerService;
+    private ProtocolExecutorService protocolExecutorService;
+    private final AtomicReference<CalculationContext> calculationContext = new AtomicReference<>();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        featureExecutorService = mock(FeatureExecutorService.class);
+        when(featureExecutorService.newBatch(any())).thenReturn(mock(ScriptExecutionBatch.class));
+        doAnswer(invocation -> {
+            calculationContext.set(invocation.getArgument(0));
+            return null;
+        }).when(featureExecutorService).prefetchMeasurementData(any(), any());
+        protocolDataCollector = mock(ProtocolDataCollector.class);
+        kafkaProducerService = mock(KafkaProducerService.class);
+
+        var plateMetadataCache = mock(PlateMetadataCache.class);
+        when(plateMetadataCache.getPlate(PLATE_ID)).thenReturn(PlateDTO.builder().id(PLATE_ID).build());
+        when(plateMetadataCache.getWells(PLATE_ID)).thenReturn(List.of(WellDTO.builder().id(1L).wellType("LC").build()));
+
+        protocolExecutorService = new ProtocolExecutorService(featureExecutorService, mock(IncrementalCalculationService.class),
+                new InMemoryResultDataServiceClient(), protocolDataCollector, plateMetadataCache, kafkaProducerService,
+                new CalculationExecutor("test", ExecutionMode.PLATFORM, 2, 100, RejectionPolicy.CALLER_RUNS),
+                false, SchedulingMode.DEPENDENCY, true, 30, 240, 1024);
+    }
+
+    @Test
+    public void dependencySchedulingTest() throws Exception {
+        // Feature 2 references feature 1, feature 3 references nothing
+        setProtocol(feature(1L, 0), feature(2L, 1, 1L), feature(3L, 0));
+        long resultSetId = protocolExecutorService.execute(PROTOCOL_ID, PLATE_ID, MEAS_ID).get(5, TimeUnit.SECONDS);
+
+        // The first features to start are the ones that reference nothing
+        verifyLaunched(List.of(1L, 3L));
+        verifyExecuted(1L);
+        verifyExecuted(3L);
+        verify(featureExecutorService, never()).executeFeature(any(), argThat(f -> f.getId() == 2L), anyInt(), any());
+
+        // Feature 2 starts once the result data of feature 1 is echoed back, and only if it has values
+        completeFeature(resultSetId, 3L);
+        protocolExecutorService.handleResultSetUpdate(resultData(resultSetId, 1L));
+        verify(featureExecutorService, never()).executeFeature(any(), argThat(f -> f.getId() == 2L), anyInt(), any());
+        completeFeature(resultSetId, 1L);
+        verifyLaunched(List.of(2L));
+        verifyExecuted(2L);
+
+        completeFeature(resultSetId, 2L);
+        verifyCalculationEvent(CalculationStatus.CALCULATION_OK);
+        Assertions.assertEquals(0, protocolExecutorService.getMetrics().get("active"));
+    }
+
+    @Test
+    public void cyclicFeaturesTest() throws Exception {
+        // Features 1 and 2 reference each other
+        setProtocol(feature(1L, 0, 2L), feature(2L, 1, 1L), feature(3L, 0));
+        protocolExecutorService.execute(PROTOCOL_ID, PLATE_ID, MEAS_ID).get(5, TimeUnit.SECONDS);
+
+        verifyCalculationEvent(CalculationStatus.CALCULATION_ERROR);
+        verify(featureExecutorService, never()).executeFeature(any(), any(), any(), any());
+    }
+
+    /**
+     * Simulate the feature executor: retain the values of the feature, then echo its result data.
+     */
+    private void completeFeature(long resultSetId, long featureId) {
+        calculationContext.get().getFeatureValues().put(featureId, new float[] { 1f });
+        protocolExecutorService.handleResultSetUpdate(resultData(resultSetId, featureId));
+    }
+
+    private void verifyLaunched(List<Long> featureIds) {
+        verify(featureExecutorService, timeout(5000)).prefetchMeasurementData(any(),
+                argThat(features -> features.stream().map(FeatureDTO::getId).toList().equals(featureIds)));
+    }
+
+    private void verifyExecuted(long featureId) {
+        verify(featureExecutorService, timeout(5000)).executeFeature(any(), argThat(f -> f.getId() == featureId), anyInt(), any());
+    }
+
+    private void verifyCalculationEvent(CalculationStatus status) {
+        verify(kafkaProducerService, timeout(5000)).notifyCalculationEvent(argThat(e -> e.getCalculationStatus() == status));
+    }
+
+    private void setProtocol(FeatureDTO... features) throws Exception {
+        var data = new ProtocolData();
+        data.protocol = ProtocolDTO.builder().id(PROTOCOL_ID).features(List.of(features)).build();
+        data.sequences = List.of(features).stream().collect(Collectors.groupingBy(FeatureDTO::getSequence));
+        data.featureStats = Map.of();
+        data.formulas = Map.of();
+        when(protocolDataCollector.getProtocolData(eq(PROTOCOL_ID))).thenReturn(data);
+    }
+
+    private static FeatureDTO feature(long id, int sequence, Long... sourceFeatureIds) {
+        var civs = List.of(sourceFeatureIds).stream()
+                .map(sourceId -> CalculationInputValueDTO.builder().inputSource(InputSource.FEATURE).sourceFeatureId(sourceId).build())
+                .toList();
+        return FeatureDTO.builder().id(id).sequence(sequence).civs(civs).build();
+    }
+
+    private static ResultDataDTO resultData(long resultSetId, long featureId) {
+        return ResultDataDTO.builder().resultSetId(resultSetId).featureId(featureId).values(new float[] { 1f }).statusCode(StatusCode.SUCCESS).build();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.script;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class JavaStatExecutorTest {
+
+    private static final float DELTA = 1e-4f;
+
+    private final JavaStatExecutor executor = new JavaStatExecutor();
+
+    private final float[] values = { 1, 2, 3, 4, Float.NaN, 10, 12, 14, 16 };
+    private final List<String> welltypes = List.of("LC", "LC", "LC", "LC", "SAMPLE", "HC", "HC", "HC", "HC");
+
+    @Test
+    public void basicStatsTest() {
+        Assertions.assertTrue(executor.isSupported(" Mean "));
+        Assertions.assertFalse(executor.isSupported("unknown"));
+
+        Assertions.assertEquals(8, executor.calculatePlateValue("count", values, welltypes, "LC", "HC"), DELTA);
+        Assertions.assertEquals(1, executor.calculatePlateValue("min", values, welltypes, "LC", "HC"), DELTA);
+        Assertions.assertEquals(16, executor.calculatePlateValue("max", values, welltypes, "LC", "HC"), DELTA);
+        Assertions.assertEquals(7.75, executor.calculatePlateValue("mean", values, welltypes, "LC", "HC"), DELTA);
+        Assertions.assertEquals(7, executor.calculatePlateValue("median", values, welltypes, "LC", "HC"), DELTA);
+
+        Map<String, Float> means = executor.calculateWelltypeValues("mean", values, welltypes);
+        Assertions.assertEquals(2.5, means.get("LC"), DELTA);
+        Assertions.assertEquals(13, means.get("HC"), DELTA);
+        Assertions.assertTrue(Float.isNaN(means.get("SAMPLE")));
+
+        Map<String, Float> stdevs = executor.calculateWelltypeValues("stdev", values, welltypes);
+        Assertions.assertEquals(1.29099, stdevs.get("LC"), DELTA);
+        Assertions.assertEquals(100 * 1.29099 / 2.5, executor.calculateWelltypeValues("cv", values, welltypes).get("LC"), 1e-3);
+    }
+
+    @Test
+    public void controlStatsTest() {
+        double sdLow = 1.29099;
+        double sdHigh = 2.58199;
+        Assertions.assertEquals(1 - 3 * (sdLow + sdHigh) / 10.5, executor.calculatePlateValue("zprime", values, welltypes, "LC", "HC"), DELTA);
+        Assertions.assertEquals(13 / 2.5, executor.calculatePlateValue("sb", values, welltypes, "LC", "HC"), DELTA);
+        Assertions.assertEquals(10.5 / sdLow, executor.calculatePlateValue("sn", values, welltypes, "LC", "HC"), DELTA);
+        Assertions.assertEquals(1 - 3 * 1.4826 * (1 + 2) / 10.5, executor.calculatePlateValue("robustzprime", values, welltypes, "LC", "HC"), DELTA);
+
+        // Control stats have no welltype values
+        Assertions.assertTrue(executor.calculateWelltypeValues("zprime", values, welltypes).values().stream().allMatch(v -> v.isNaN()));
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.script;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import eu.openanalytics.phaedra.scriptengine.dto.ResponseStatusCode;
+import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
+
+public class ScriptExecutionRequestTest {
+
+    @Test
+    public void rejectedCallbackTest() {
+        var request = ScriptExecutionRequest.builder()
+                .callbackExecutor(command -> { throw new RejectedExecutionException("Saturated"); })
+                .build();
+        var received = new AtomicReference<ScriptExecutionOutputDTO>();
+        request.addCallback(received::set);
+
+        // The saturated executor rejects the callback: it runs on the completing thread instead
+        var output = ScriptExecutionOutputDTO.builder().statusCode(ResponseStatusCode.SUCCESS).build();
+        request.signalOutputAvailable(output);
+        Assertions.assertSame(output, received.get());
+    }
+
+    @Test
+    public void failingCallbackTest() {
+        var request = ScriptExecutionRequest.builder().callbackExecutor(Runnable::run).build();
+        var error = new AtomicReference<Throwable>();
+        request.addCallback(output -> { throw new IllegalStateException("Callback failed"); }, error::set);
+
+        request.signalOutputAvailable(ScriptExecutionOutputDTO.builder().statusCode(ResponseStatusCode.SUCCESS).build());
+        Assertions.assertTrue(error.get() instanceof IllegalStateException);
+    }
+}
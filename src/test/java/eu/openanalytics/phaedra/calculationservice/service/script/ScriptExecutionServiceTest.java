@@ -0,0 +1,223 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.service.script;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.openanalytics.phaedra.calculationservice.dto.ScriptExecutionBatchDTO;
+import eu.openanalytics.phaedra.calculationservice.enumeration.ExecutionMode;
+import eu.openanalytics.phaedra.calculationservice.enumeration.RejectionPolicy;
+import eu.openanalytics.phaedra.calculationservice.enumeration.ScriptLanguage;
+import eu.openanalytics.phaedra.calculationservice.repository.ScriptOutputMemoRepository;
+import eu.openanalytics.phaedra.calculationservice.service.KafkaProducerService;
+import eu.openanalytics.phaedra.calculationservice.support.LocalScriptEngine;
+import eu.openanalytics.phaedra.calculationservice.util.CalculationExecutor;
+import eu.openanalytics.phaedra.calculationservice.util.ScriptMessageStatistics;
+import eu.openanalytics.phaedra.scriptengine.dto.ResponseStatusCode;
+import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionInputDTO;
+
+public class ScriptExecutionServiceTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final LocalScriptEngine scriptEngine = new LocalScriptEngine((script, input) ->
+            ((Number) input.get("value")).intValue() * ((Number) input.get("factor")).intValue());
+
+    private KafkaProducerService kafkaProducerService;
+    private ScriptExecutionService scriptExecutionService;
+
+    @BeforeEach
+    public void setup() {
+        kafkaProducerService = mock(KafkaProducerService.class);
+        scriptExecutionService = new ScriptExecutionService();
+        ReflectionTestUtils.setField(scriptExecutionService, "kafkaProducer", kafkaProducerService);
+        ReflectionTestUtils.setField(scriptExecutionService, "objectMapper", objectMapper);
+        ReflectionTestUtils.setField(scriptExecutionService, "callbackExecutor", new CalculationExecutor("test", ExecutionMode.PLATFORM, 2, 100, RejectionPolicy.CALLER_RUNS));
+        ReflectionTestUtils.setField(scriptExecutionService, "maxBatchBytes", 900000L);
+    }
+
+    @Test
+    public void batchDemultiplexTest() throws Exception {
+        ReflectionTestUtils.setField(scriptExecutionService, "batchingEnabled", true);
+
+        var statistics = new ScriptMessageStatistics();
+        var batch = scriptExecutionService.newBatch(Map.of("factor", 2), statistics);
+        List<ScriptExecutionRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(batch.add(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", i), null));
+        }
+        batch.submit();
+
+        var batchCaptor = ArgumentCaptor.forClass(ScriptExecutionBatchDTO.class);
+        verify(kafkaProducerService, times(1)).sendScriptExecutionBatch(batchCaptor.capture());
+        verify(kafkaProducerService, never()).sendScriptExecutionRequest(any());
+        Assertions.assertEquals(3, batchCaptor.getValue().getInputs().size());
+
+        scriptExecutionService.handleScriptExecutionBatchUpdate(scriptEngine.execute(batchCaptor.getValue()));
+        for (int i = 0; i < 3; i++) {
+            var output = requests.get(i).awaitOutput();
+            Assertions.assertEquals(requests.get(i).getId(), output.getInputId());
+            Assertions.assertEquals(i * 2, objectMapper.readTree(output.getOutput()).get("output").asInt());
+        }
+
+        Assertions.assertEquals(3, statistics.getRequestCount());
+        Assertions.assertEquals(1, statistics.getMessageCount());
+        Assertions.assertEquals(2, statistics.getSavedMessageCount());
+        Assertions.assertEquals(2 * objectMapper.writeValueAsString(Map.of("factor", 2)).length(), statistics.getSavedByteCount());
+    }
+
+    @Test
+    public void batchingDisabledTest() throws Exception {
+        ReflectionTestUtils.setField(scriptExecutionService, "batchingEnabled", false);
+
+        var batch = scriptExecutionService.newBatch(Map.of("factor", 3), null);
+        var request = batch.add(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", 5), null);
+        batch.submit();
+
+        var inputCaptor = ArgumentCaptor.forClass(ScriptExecutionInputDTO.class);
+        verify(kafkaProducerService, times(1)).sendScriptExecutionRequest(inputCaptor.capture());
+        verify(kafkaProducerService, never()).sendScriptExecutionBatch(any());
+
+        scriptExecutionService.handleScriptExecutionUpdate(scriptEngine.execute(inputCaptor.getValue()));
+        Assertions.assertEquals(15, objectMapper.readTree(request.awaitOutput().getOutput()).get("output").asInt());
+    }
+
+    @Test
+    public void requestTimeoutTest() throws Exception {
+        ReflectionTestUtils.setField(scriptExecutionService, "requestTimeoutSeconds", 0L);
+        scriptExecutionService.setMaxInFlight(1);
+
+        var request = scriptExecutionService.submit(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", 1, "factor", 1));
+        Assertions.assertEquals(0, scriptExecutionService.getMetrics().get("availableInFlightSlots"));
+
+        // The response never arrives: the request is retried until it runs out of retries
+        for (int i = 0; i < request.getMaxRetryCount() + 1; i++) {
+            Thread.sleep(1);
+            scriptExecutionService.sweepExpiredRequests();
+        }
+        verify(kafkaProducerService, times(request.getMaxRetryCount() + 1)).sendScriptExecutionRequest(any());
+
+        var output = request.awaitOutput();
+        Assertions.assertEquals(ResponseStatusCode.WORKER_INTERNAL_ERROR, output.getStatusCode());
+        Assertions.assertEquals(0, scriptExecutionService.getMetrics().get("tracked"));
+        Assertions.assertEquals(1, scriptExecutionService.getMetrics().get("availableInFlightSlots"));
+    }
+
+    @Test
+    public void inFlightQueueTest() throws Exception {
+        scriptExecutionService.setMaxInFlight(1);
+
+        var firstRequest = scriptExecutionService.submit(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", 2, "factor", 3));
+        var secondRequest = scriptExecutionService.submit(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", 4, "factor", 5));
+
+        // The second request waits for the first one to complete, without blocking the caller
+        var inputCaptor = ArgumentCaptor.forClass(ScriptExecutionInputDTO.class);
+        verify(kafkaProducerService, times(1)).sendScriptExecutionRequest(inputCaptor.capture());
+        Assertions.assertNull(secondRequest.getId());
+        Assertions.assertEquals(1, scriptExecutionService.getMetrics().get("waiting"));
+
+        scriptExecutionService.handleScriptExecutionUpdate(scriptEngine.execute(inputCaptor.getValue()));
+        Assertions.assertEquals(6, objectMapper.readTree(firstRequest.awaitOutput().getOutput()).get("output").asInt());
+        verify(kafkaProducerService, times(2)).sendScriptExecutionRequest(inputCaptor.capture());
+        Assertions.assertEquals(0, scriptExecutionService.getMetrics().get("waiting"));
+
+        scriptExecutionService.handleScriptExecutionUpdate(scriptEngine.execute(inputCaptor.getValue()));
+        Assertions.assertEquals(20, objectMapper.readTree(secondRequest.awaitOutput().getOutput()).get("output").asInt());
+        Assertions.assertEquals(1, scriptExecutionService.getMetrics().get("availableInFlightSlots"));
+    }
+
+    @Test
+    public void claimCheckTest(@TempDir Path blobDirectory) throws Exception {
+        var blobStore = new FileSystemBlobStore(blobDirectory);
+        ReflectionTestUtils.setField(scriptExecutionService, "blobStore", blobStore);
+        ReflectionTestUtils.setField(scriptExecutionService, "claimCheckThresholdBytes", 10L);
+        ReflectionTestUtils.setField(scriptExecutionService, "requestTimeoutSeconds", 0L);
+
+        var request = scriptExecutionService.submit(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", 4, "factor", 5));
+        Assertions.assertNotNull(request.getBlobReference());
+        Assertions.assertEquals(1, countFiles(blobDirectory));
+
+        // A retry resends the same reference, without storing the input again
+        Thread.sleep(1);
+        scriptExecutionService.sweepExpiredRequests();
+        var inputCaptor = ArgumentCaptor.forClass(ScriptExecutionInputDTO.class);
+        verify(kafkaProducerService, times(2)).sendScriptExecutionRequest(inputCaptor.capture());
+        var sentInput = inputCaptor.getValue();
+        Assertions.assertEquals(request.getBlobReference(), objectMapper.readTree(sentInput.getInput()).get(BlobStore.REFERENCE_FIELD).asText());
+        Assertions.assertEquals(1, countFiles(blobDirectory));
+
+        var engine = new LocalScriptEngine((script, input) ->
+                ((Number) input.get("value")).intValue() * ((Number) input.get("factor")).intValue(), blobStore);
+        scriptExecutionService.handleScriptExecutionUpdate(engine.execute(sentInput));
+        Assertions.assertEquals(20, objectMapper.readTree(request.awaitOutput().getOutput()).get("output").asInt());
+
+        // The blob is removed once the request has completed
+        Assertions.assertEquals(0, countFiles(blobDirectory));
+    }
+
+    @Test
+    public void memoizationTest() throws Exception {
+        ReflectionTestUtils.setField(scriptExecutionService, "outputMemo", new ScriptOutputMemo(mock(ScriptOutputMemoRepository.class), true, false, 100, 60));
+
+        var request = scriptExecutionService.submit(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", 6, "factor", 7));
+        var inputCaptor = ArgumentCaptor.forClass(ScriptExecutionInputDTO.class);
+        verify(kafkaProducerService, times(1)).sendScriptExecutionRequest(inputCaptor.capture());
+        scriptExecutionService.handleScriptExecutionUpdate(scriptEngine.execute(inputCaptor.getValue()));
+        Assertions.assertEquals(42, objectMapper.readTree(request.awaitOutput().getOutput()).get("output").asInt());
+
+        // The same script with the same input is not sent again
+        var repeatedRequest = scriptExecutionService.submit(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", 6, "factor", 7));
+        var output = repeatedRequest.awaitOutput();
+        Assertions.assertEquals(repeatedRequest.getId(), output.getInputId());
+        Assertions.assertEquals(42, objectMapper.readTree(output.getOutput()).get("output").asInt());
+        verify(kafkaProducerService, times(1)).sendScriptExecutionRequest(any());
+
+        // A different input or script is sent
+        scriptExecutionService.submit(ScriptLanguage.JAVASTAT, "multiply", Map.of("value", 6, "factor", 8));
+        scriptExecutionService.submit(ScriptLanguage.JAVASTAT, "multiply2", Map.of("value", 6, "factor", 7));
+        verify(kafkaProducerService, times(3)).sendScriptExecutionRequest(any());
+        Assertions.assertEquals(1L, scriptExecutionService.getMetrics().get("memoHits"));
+    }
+
+    private static long countFiles(Path directory) throws Exception {
+        try (var files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
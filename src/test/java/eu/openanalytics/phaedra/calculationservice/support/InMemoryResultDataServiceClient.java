@@ -110,8 +110,11 @@ public class InMemoryResultDataServiceClient implements ResultDataServiceClient
     }
 
     @Override
-    public ResultSetDTO getResultSet(long resultSetId) throws ResultSetUnresolvableException {
-        return null;
+    public synchronized ResultSetDTO getResultSet(long resultSetId) throws ResultSetUnresolvableException {
+        if (resultSetId < 0 || resultSetId >= resultSets.size()) {
+            throw new ResultSetUnresolvableException("ResultSet not found");
+        }
+        return resultSets.get((int) resultSetId);
     }
 
     @Override
@@ -120,13 +123,16 @@ public class InMemoryResultDataServiceClient implements ResultDataServiceClient
     }
 
     @Override
-    public List<ResultDataDTO> getResultData(long resultSetId) throws ResultDataUnresolvableException {
-        return null;
+    public synchronized List<ResultDataDTO> getResultData(long resultSetId) throws ResultDataUnresolvableException {
+        if (!resultData.containsKey(resultSetId)) {
+            throw new ResultDataUnresolvableException("ResultData not found");
+        }
+        return new ArrayList<>(resultData.get(resultSetId));
     }
 
     @Override
-    public List<ResultFeatureStatDTO> getResultFeatureStat(long resultSetId) {
-        return null;
+    public synchronized List<ResultFeatureStatDTO> getResultFeatureStat(long resultSetId) {
+        return featureStats.stream().filter((x) -> x.getResultSetId().equals(resultSetId)).toList();
     }
 
 	@Override
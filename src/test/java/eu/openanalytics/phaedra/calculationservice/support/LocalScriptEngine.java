@@ -0,0 +1,107 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.support;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.openanalytics.phaedra.calculationservice.dto.ScriptExecutionBatchDTO;
+import eu.openanalytics.phaedra.calculationservice.dto.ScriptExecutionBatchOutputDTO;
+import eu.openanalytics.phaedra.calculationservice.service.script.BlobStore;
+import eu.openanalytics.phaedra.calculationservice.util.BinaryInputCodec;
+import eu.openanalytics.phaedra.scriptengine.dto.ResponseStatusCode;
+import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionInputDTO;
+import eu.openanalytics.phaedra.scriptengine.dto.ScriptExecutionOutputDTO;
+
+/**
+ * A stand-in for the script engine, which evaluates "scripts" in-process using a Java function.
+ * 
+ * The function receives the script and the (deserialized) input document, and returns the output value.
+ * The output value is wrapped in an output document, as the script engine does: {"output": value}.
+ * Arrays in the binary input encoding are decoded into float[] values, see {@link BinaryInputCodec}.
+ * Input documents sent by reference are read from the given {@link BlobStore}.
+ */
+public class LocalScriptEngine {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BiFunction<String, Map<String, Object>, Object> evaluator;
+    private final BlobStore blobStore;
+
+    public LocalScriptEngine(BiFunction<String, Map<String, Object>, Object> evaluator) {
+        this(evaluator, null);
+    }
+
+    public LocalScriptEngine(BiFunction<String, Map<String, Object>, Object> evaluator, BlobStore blobStore) {
+        this.evaluator = evaluator;
+        this.blobStore = blobStore;
+    }
+
+    public ScriptExecutionOutputDTO execute(ScriptExecutionInputDTO input) {
+        return execute(input, null);
+    }
+
+    public ScriptExecutionBatchOutputDTO execute(ScriptExecutionBatchDTO batch) {
+        return ScriptExecutionBatchOutputDTO.builder()
+                .batchId(batch.getId())
+                .outputs(batch.getInputs().stream().map(input -> execute(input, batch.getSharedInput())).toList())
+                .build();
+    }
+
+    private ScriptExecutionOutputDTO execute(ScriptExecutionInputDTO input, String sharedInput) {
+        try {
+            // Shared input fields override the fields of the input document
+            Map<String, Object> inputData = new HashMap<>(parse(input.getInput()));
+            if (sharedInput != null) inputData.putAll(parse(sharedInput));
+
+            Object value = evaluator.apply(input.getScript(), inputData);
+            return ScriptExecutionOutputDTO.builder()
+                    .inputId(input.getId())
+                    .output(objectMapper.writeValueAsString(Map.of("output", value)))
+                    .statusCode(ResponseStatusCode.SUCCESS)
+                    .statusMessage("Ok")
+                    .exitCode(0)
+                    .build();
+        } catch (Exception e) {
+            return ScriptExecutionOutputDTO.builder()
+                    .inputId(input.getId())
+                    .statusCode(ResponseStatusCode.SCRIPT_ERROR)
+                    .statusMessage(e.getMessage())
+                    .exitCode(1)
+                    .build();
+        }
+    }
+
+    private Map<String, Object> parse(String document) throws IOException {
+        if (document == null) return new HashMap<>();
+        Map<String, Object> parsed = objectMapper.readValue(document, new TypeReference<Map<String, Object>>() {});
+        if (blobStore != null && parsed.get(BlobStore.REFERENCE_FIELD) instanceof String reference) {
+            parsed = objectMapper.readValue(blobStore.get(reference), new TypeReference<Map<String, Object>>() {});
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> decoded = (Map<String, Object>) BinaryInputCodec.decodeDocument(parsed);
+        return decoded;
+    }
+}
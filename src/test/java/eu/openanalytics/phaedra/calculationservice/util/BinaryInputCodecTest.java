@@ -0,0 +1,60 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class BinaryInputCodecTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void roundtripTest() throws Exception {
+        float[] values = { 1.5f, -2.25f, Float.NaN, Float.MAX_VALUE, 0f };
+        var document = objectMapper.readValue(
+                BinaryInputCodec.createObjectMapper(objectMapper).writeValueAsString(Map.of("column", values, "nested", List.of(values), "name", "x")),
+                Map.class);
+
+        var decoded = (Map<?, ?>) BinaryInputCodec.decodeDocument(document);
+        Assertions.assertArrayEquals(values, (float[]) decoded.get("column"));
+        Assertions.assertArrayEquals(values, (float[]) ((List<?>) decoded.get("nested")).get(0));
+        Assertions.assertEquals("x", decoded.get("name"));
+    }
+
+    @Test
+    public void sizeTest() throws Exception {
+        float[] values = new float[10_000];
+        var random = new Random(1);
+        for (int i = 0; i < values.length; i++) values[i] = random.nextFloat() * 1000;
+        var input = Map.of("subwellColumn", values);
+
+        String json = objectMapper.writeValueAsString(input);
+        String binary = BinaryInputCodec.createObjectMapper(objectMapper).writeValueAsString(input);
+        Assertions.assertTrue(binary.length() < json.length() * 2 / 3);
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import eu.openanalytics.phaedra.calculationservice.model.CalculationContext;
+import eu.openanalytics.phaedra.calculationservice.service.protocol.ProtocolDataCollector.ProtocolData;
+import eu.openanalytics.phaedra.plateservice.dto.PlateDTO;
+import eu.openanalytics.phaedra.plateservice.dto.WellDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.FeatureStatDTO;
+import eu.openanalytics.phaedra.protocolservice.dto.ProtocolDTO;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultDataDTO;
+import eu.openanalytics.phaedra.resultdataservice.dto.ResultFeatureStatDTO;
+
+public class CalculationProgressTest {
+
+    @Test
+    public void sequenceProgressTest() {
+        var progress = createContext().getCalculationProgress();
+        Assertions.assertEquals(0, progress.getCurrentSequence());
+        Assertions.assertEquals(0f, progress.getCompletedFraction());
+
+        // Feature 1: data + 1 plate stat + 1 welltype stat (2 welltypes) = 4 slots
+        progress.updateProgress(ResultDataDTO.builder().resultSetId(1L).featureId(1L).build());
+        Assertions.assertTrue(progress.isFeatureDataUploaded(1L));
+        Assertions.assertTrue(progress.isCurrentSequenceDataComplete());
+        Assertions.assertFalse(progress.isCurrentSequenceComplete());
+
+        progress.updateProgress(stat(1L, 10L, null));
+        progress.updateProgress(stat(1L, 11L, "LC"));
+        // Duplicate updates and unknown welltypes are ignored
+        progress.updateProgress(stat(1L, 11L, "LC"));
+        progress.updateProgress(stat(1L, 11L, "XX"));
+        Assertions.assertFalse(progress.isFeatureComplete(1L));
+        progress.updateProgress(stat(1L, 11L, "HC"));
+        Assertions.assertTrue(progress.isFeatureComplete(1L));
+        Assertions.assertTrue(progress.isCurrentSequenceComplete());
+        Assertions.assertTrue(progress.isCompleteUpToCurrentSequence());
+
+        Assertions.assertTrue(progress.advanceSequence(0));
+        Assertions.assertFalse(progress.advanceSequence(0));
+        Assertions.assertEquals(1, progress.getCurrentSequence());
+        Assertions.assertFalse(progress.isComplete());
+
+        progress.updateProgressFeature(2L, true);
+        Assertions.assertTrue(progress.isComplete());
+        Assertions.assertEquals(1f, progress.getCompletedFraction());
+        Assertions.assertFalse(progress.advanceSequence(1));
+    }
+
+    @Test
+    public void statWithoutWelltypeTest() {
+        var progress = createContext().getCalculationProgress();
+        progress.updateProgress(ResultDataDTO.builder().resultSetId(1L).featureId(1L).build());
+
+        // A welltype of a plate stat is ignored: it must not complete a slot of the next stat
+        progress.updateProgress(stat(1L, 10L, "HC"));
+        Assertions.assertFalse(progress.isFeatureComplete(1L));
+        Assertions.assertEquals(2f / 6, progress.getCompletedFraction(), 1e-6);
+
+        // A welltype stat value without welltype completes all welltypes of the stat, not just one
+        progress.updateProgress(stat(1L, 11L, null));
+        Assertions.assertTrue(progress.isFeatureComplete(1L));
+        Assertions.assertEquals(4f / 6, progress.getCompletedFraction(), 1e-6);
+    }
+
+    @Test
+    public void concurrentProgressTest() throws Exception {
+        var progress = createContext().getCalculationProgress();
+        var updates = List.<Object>of(
+                ResultDataDTO.builder().featureId(1L).build(),
+                stat(1L, 10L, null), stat(1L, 11L, "LC"), stat(1L, 11L, "HC"));
+
+        // Every thread sends all updates (duplicates included), then tries to advance the sequence
+        int threadCount = 8;
+        var advanced = new AtomicInteger();
+        var start = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                updates.forEach(progress::updateProgress);
+                if (progress.isCurrentSequenceComplete() && progress.advanceSequence(0)) advanced.incrementAndGet();
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(1, advanced.get());
+        Assertions.assertEquals(1, progress.getCurrentSequence());
+        Assertions.assertEquals(4f / 6, progress.getCompletedFraction(), 1e-6);
+    }
+
+    private static ResultFeatureStatDTO stat(long featureId, long statId, String welltype) {
+        return ResultFeatureStatDTO.builder().featureId(featureId).featureStatId(statId).welltype(welltype).build();
+    }
+
+    private static CalculationContext createContext() {
+        var features = List.of(
+                FeatureDTO.builder().id(1L).sequence(0).civs(List.of()).build(),
+                FeatureDTO.builder().id(2L).sequence(1).civs(List.of()).build());
+        var data = new ProtocolData();
+        data.protocol = ProtocolDTO.builder().id(1L).features(features).build();
+        data.sequences = features.stream().collect(Collectors.groupingBy(FeatureDTO::getSequence));
+        data.featureStats = Map.of(
+                1L, List.of(
+                        FeatureStatDTO.builder().id(10L).featureId(1L).plateStat(true).welltypeStat(false).build(),
+                        FeatureStatDTO.builder().id(11L).featureId(1L).plateStat(false).welltypeStat(true).build()),
+                2L, List.of(
+                        FeatureStatDTO.builder().id(20L).featureId(2L).plateStat(true).welltypeStat(false).build()));
+        var wells = List.of(
+                WellDTO.builder().id(1L).wellType("LC").build(),
+                WellDTO.builder().id(2L).wellType("HC").build(),
+                WellDTO.builder().id(3L).wellType("LC").build());
+        return CalculationContext.newInstance(data, PlateDTO.builder().id(1L).build(), wells, 1L, 1L);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ExpiringLruCacheTest {
+
+    @Test
+    public void expiryAndEvictionTest() {
+        var now = new AtomicLong();
+        var loads = new AtomicInteger();
+        var cache = new ExpiringLruCache<Long, String>(2, 1000, now::get);
+
+        Assertions.assertEquals("a", cache.get(1L, () -> { loads.incrementAndGet(); return "a"; }));
+        Assertions.assertEquals("a", cache.get(1L, () -> { loads.incrementAndGet(); return "a2"; }));
+        Assertions.assertEquals(1, loads.get());
+
+        // Entry 1 is the most recently used, so adding a third entry evicts entry 2
+        cache.get(2L, () -> "b");
+        cache.get(1L, () -> "x");
+        cache.get(3L, () -> "c");
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals("b2", cache.get(2L, () -> "b2"));
+
+        now.set(1500);
+        Assertions.assertEquals("a3", cache.get(1L, () -> "a3"));
+
+        cache.invalidate(1L);
+        Assertions.assertEquals("a4", cache.get(1L, () -> "a4"));
+        Assertions.assertEquals(2, cache.getHits());
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class FeatureDependencyGraphTest {
+
+    @Test
+    public void readyFeaturesTest() {
+        var graph = new FeatureDependencyGraph(Map.of(
+                1L, Set.of(),
+                2L, Set.of(1L),
+                3L, Set.of(1L, 2L),
+                4L, Set.of(99L)));
+        Set<Long> available = new HashSet<>();
+
+        Assertions.assertEquals(Set.of(1L, 4L), Set.copyOf(graph.takeReadyFeatures(available::contains)));
+        Assertions.assertTrue(graph.takeReadyFeatures(available::contains).isEmpty());
+
+        available.add(1L);
+        Assertions.assertEquals(List.of(2L), graph.takeReadyFeatures(available::contains));
+
+        available.add(2L);
+        Assertions.assertEquals(List.of(3L), graph.takeReadyFeatures(available::contains));
+        Assertions.assertEquals(Set.of(1L, 2L, 3L, 4L), graph.getLaunchedFeatures());
+        Assertions.assertEquals(Set.of(2L, 3L), graph.getDependents(1L));
+    }
+
+    @Test
+    public void transitiveDependentsTest() {
+        var graph = new FeatureDependencyGraph(Map.of(
+                1L, Set.of(),
+                2L, Set.of(1L),
+                3L, Set.of(2L),
+                4L, Set.of(),
+                5L, Set.of(3L, 4L)));
+        Assertions.assertEquals(Set.of(2L, 3L, 5L), graph.getTransitiveDependents(List.of(2L)));
+        Assertions.assertEquals(Set.of(4L, 5L), graph.getTransitiveDependents(List.of(4L, 99L)));
+        Assertions.assertEquals(Set.of(1L, 2L, 3L, 4L, 5L), graph.getTransitiveDependents(List.of(1L, 4L)));
+        Assertions.assertTrue(graph.getTransitiveDependents(List.of()).isEmpty());
+
+        graph.markLaunched(Set.of(1L, 4L));
+        Assertions.assertEquals(List.of(2L), graph.takeReadyFeatures(Set.of(1L)::contains));
+    }
+
+    @Test
+    public void cyclicFeaturesTest() {
+        var graph = new FeatureDependencyGraph(Map.of(
+                1L, Set.of(),
+                2L, Set.of(3L),
+                3L, Set.of(2L),
+                4L, Set.of(3L)));
+        Assertions.assertEquals(Set.of(2L, 3L, 4L), Set.copyOf(graph.findCyclicFeatures()));
+
+        var acyclicGraph = new FeatureDependencyGraph(Map.of(1L, Set.of(), 2L, Set.of(1L)));
+        Assertions.assertTrue(acyclicGraph.findCyclicFeatures().isEmpty());
+    }
+}
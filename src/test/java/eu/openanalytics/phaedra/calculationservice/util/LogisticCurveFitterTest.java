@@ -0,0 +1,97 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LogisticCurveFitterTest {
+
+    private final LogisticCurveFitter fitter = new LogisticCurveFitter(0.95);
+
+    /**
+     * A curve with bottom 0, top 100, slope 1 and pIC50 6, sampled in duplicate at doses 4 to 8,
+     * with a small deterministic noise and one outlier.
+     */
+    @Test
+    public void robustFixedBottomFitTest() {
+        int n = 18;
+        float[] doses = new float[n];
+        float[] responses = new float[n];
+        float[] accepts = new float[n];
+        for (int i = 0; i < n; i++) {
+            doses[i] = 4f + (i / 2) * 0.5f;
+            responses[i] = (float) (100 / (1 + Math.pow(10, doses[i] - 6))) + ((i % 3) - 1) * 1.5f;
+            accepts[i] = 1;
+        }
+        responses[5] += 40;
+
+        var result = fitter.fit(doses, responses, accepts, 0.0, true);
+
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(6, result.pIC50().estimate(), 0.05);
+        Assertions.assertEquals(100, result.top().estimate(), 2);
+        Assertions.assertEquals(1, result.slope().estimate(), 0.1);
+        Assertions.assertEquals(0, result.bottom().estimate());
+        Assertions.assertTrue(result.pIC50().lowerCI() < 6 && result.pIC50().upperCI() > 6);
+        Assertions.assertEquals("6.0", result.pIC50toReport().substring(0, 3));
+
+        // The outlier is rejected by the robust weighting
+        Assertions.assertEquals(0f, result.weights()[5]);
+
+        // 20% of the effect is reached at a higher dilution than 80% of the effect
+        Assertions.assertEquals(6 + Math.log10(4), result.pIC20(), 0.1);
+        Assertions.assertEquals(6 - Math.log10(4), result.pIC80(), 0.1);
+        Assertions.assertTrue(result.eMax() > 95 && result.eMaxDose() == 4);
+        Assertions.assertTrue(result.eMin() < 5 && result.eMinDose() == 8);
+        Assertions.assertEquals(100, result.plotDoses().length);
+    }
+
+    @Test
+    public void freeBottomAndRejectedPointsTest() {
+        float[] doses = { 4, 4.5f, 5, 5.5f, 6, 6.5f, 7, 7.5f, 8, 8 };
+        float[] responses = new float[doses.length];
+        float[] accepts = new float[doses.length];
+        for (int i = 0; i < doses.length; i++) {
+            responses[i] = (float) (10 + 80 / (1 + Math.pow(10, 1.5 * (doses[i] - 5.5))));
+            accepts[i] = 1;
+        }
+        responses[9] = 1000;
+        accepts[9] = 0;
+
+        var result = fitter.fit(doses, responses, accepts, null, true);
+
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(10, result.bottom().estimate(), 0.1);
+        Assertions.assertEquals(90, result.top().estimate(), 0.1);
+        Assertions.assertEquals(1.5, result.slope().estimate(), 0.01);
+        Assertions.assertEquals(5.5, result.pIC50().estimate(), 0.01);
+        Assertions.assertEquals(0f, result.weights()[9]);
+    }
+
+    @Test
+    public void notEnoughPointsTest() {
+        float[] doses = { 4, 5, 6 };
+        float[] responses = { 100, 50, 0 };
+        float[] accepts = { 1, 1, 1 };
+        Assertions.assertNull(fitter.fit(doses, responses, accepts, 0.0, true));
+    }
+}
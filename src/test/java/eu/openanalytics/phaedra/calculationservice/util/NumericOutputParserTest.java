@@ -0,0 +1,108 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.calculationservice.util;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+public class NumericOutputParserTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void missingValuesTest() throws Exception {
+        String json = "{\"other\": {\"a\": [1, 2]}, \"output\": [1, 2.5, \"3\", \"NA\", \"NaN\", null, \"\", \"-4e2\", true]}";
+        float[] values = NumericOutputParser.parseFloatArray(objectMapper.getFactory(), json, "output");
+        Assertions.assertArrayEquals(new float[] { 1f, 2.5f, 3f, Float.NaN, Float.NaN, Float.NaN, Float.NaN, -400f, Float.NaN }, values);
+
+        // Whitespace around a number is accepted, like Float.parseFloat does
+        values = NumericOutputParser.parseFloatArray(objectMapper.getFactory(), "{\"output\": [\" 1.5\", \"2 \", \"\\t-3\\n\", \" \", \" NA \"]}", "output");
+        Assertions.assertArrayEquals(new float[] { 1.5f, 2f, -3f, Float.NaN, Float.NaN }, values);
+
+        Assertions.assertNull(NumericOutputParser.parseFloatArray(objectMapper.getFactory(), "{\"other\": 1}", "output"));
+        Assertions.assertNull(NumericOutputParser.parseFloatArray(objectMapper.getFactory(), "{\"output\": null}", "output"));
+        Assertions.assertThrows(IOException.class, () -> NumericOutputParser.parseFloatArray(objectMapper.getFactory(), "[1, 2]", "output"));
+        Assertions.assertThrows(IOException.class, () -> NumericOutputParser.parseFloatArray(objectMapper.getFactory(), "{\"output\": [[1]]}", "output"));
+    }
+
+    @Test
+    public void deserializerTest() throws Exception {
+        var wrapper = objectMapper.readValue("{\"values\": [1, \"NA\"], \"value\": \"NA\"}", Wrapper.class);
+        Assertions.assertArrayEquals(new float[] { 1f, Float.NaN }, wrapper.values);
+        Assertions.assertTrue(Float.isNaN(wrapper.value));
+    }
+
+    @Test
+    public void stringParityTest() throws Exception {
+        for (int size : new int[] { 1536, 6144 }) {
+            String json = createOutput(size);
+            Assertions.assertArrayEquals(parseViaStrings(json), NumericOutputParser.parseFloatArray(objectMapper.getFactory(), json, "output"));
+        }
+    }
+
+    private String createOutput(int size) {
+        var random = new Random(1);
+        var json = new StringBuilder("{\"output\": [");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) json.append(',');
+            if (i % 50 == 0) json.append("\"NA\"");
+            else json.append(random.nextFloat() * 1000);
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * The previous implementation: bind to String[] and parse every value separately.
+     */
+    private float[] parseViaStrings(String json) throws IOException {
+        String[] strings = objectMapper.readValue(json, StringOutput.class).output;
+        float[] values = new float[strings.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                values[i] = Float.parseFloat(strings[i]);
+            } catch (Exception e) {
+                values[i] = Float.NaN;
+            }
+        }
+        return values;
+    }
+
+    private static class StringOutput {
+        @JsonProperty
+        public String[] output;
+    }
+
+    private static class Wrapper {
+        @JsonProperty
+        @JsonDeserialize(using = NumericOutputParser.FloatArrayDeserializer.class)
+        public float[] values;
+        @JsonProperty
+        @JsonDeserialize(using = NumericOutputParser.FloatDeserializer.class)
+        public Float value;
+    }
+}